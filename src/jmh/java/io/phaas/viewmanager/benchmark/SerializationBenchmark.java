@@ -0,0 +1,94 @@
+package io.phaas.viewmanager.benchmark;
+
+import io.phaas.viewmanager.JacksonViewCodec;
+import io.phaas.viewmanager.model.TestObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Serialization and deserialization of documents of different sizes and formats.
+ * 
+ * @author Patrick Haas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	private static final TypeReference<List<TestObject>> TYPE = new TypeReference<List<TestObject>>() {
+	};
+
+	/** Number of objects in a document */
+	@Param({ "1", "100", "10000" })
+	public int size;
+
+	@Param({ "json", "smile", "cbor" })
+	public String format;
+
+	/** Compression threshold in bytes, see {@link JacksonViewCodec#setCompressionThreshold(int)} */
+	@Param({ "2147483647", "4096" })
+	public int compressionThreshold;
+
+	private JacksonViewCodec<List<TestObject>> codec;
+	private List<TestObject> document;
+	private byte[] data;
+
+	@Setup
+	public void setup() throws IOException {
+		codec = new JacksonViewCodec<>(TYPE, new ObjectMapper(factory(format)));
+		codec.setCompressionThreshold(compressionThreshold);
+
+		document = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			TestObject object = new TestObject("item." + i, "GREEN", "FOO");
+			object.count = i;
+			document.add(object);
+		}
+		data = codec.encode(document);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return codec.encode(document);
+	}
+
+	@Benchmark
+	public List<TestObject> deserialize() throws IOException {
+		return codec.decode(data);
+	}
+
+	private static JsonFactory factory(String format) {
+		switch (format) {
+		case "smile":
+			return new SmileFactory();
+		case "cbor":
+			return new CBORFactory();
+		default:
+			return new JsonFactory();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package io.phaas.viewmanager.benchmark;
+
+import io.phaas.viewmanager.TestEntity;
+import io.phaas.viewmanager.TestViewManager;
+import io.phaas.viewmanager.jpa.JpaTestViewRepository;
+import io.phaas.viewmanager.jpa.TestViewEntity;
+import io.phaas.viewmanager.model.TestObject;
+
+import java.util.List;
+
+import javax.persistence.FlushModeType;
+
+/**
+ * The operations of the benchmarks, implemented by the JDBC view manager and by the JPA baseline.
+ * 
+ * @author Patrick Haas
+ */
+public interface ViewAccess {
+
+	void createItem(String id);
+
+	Object loadItem(String id);
+
+	void updateItem(String id);
+
+	List<?> findItems(String itemId);
+
+	void deleteAll();
+
+	public static class JdbcAccess implements ViewAccess {
+		private final TestViewManager vm;
+
+		public JdbcAccess(TestViewManager vm) {
+			this.vm = vm;
+		}
+
+		@Override
+		public void createItem(String id) {
+			vm.persist(new TestEntity(id, new TestObject("item." + id, "GREEN", "FOO")));
+		}
+
+		@Override
+		public Object loadItem(String id) {
+			return vm.load(id);
+		}
+
+		@Override
+		public void updateItem(String id) {
+			vm.require(id).write().count++;
+		}
+
+		@Override
+		public List<?> findItems(String itemId) {
+			return vm.findByGroupId(itemId);
+		}
+
+		@Override
+		public void deleteAll() {
+			vm.deleteAll();
+		}
+	}
+
+	public static class JpaAccess implements ViewAccess {
+		private final JpaTestViewRepository repository;
+
+		public JpaAccess(JpaTestViewRepository repository) {
+			this.repository = repository;
+		}
+
+		@Override
+		public void createItem(String id) {
+			TestObject json = new TestObject("item." + id, "GREEN", "FOO");
+
+			TestViewEntity item = repository.create(id);
+			item.setItemId(json.groupId);
+			item.setKey(json.key);
+			item.setOtherKey(json.otherKey);
+			item.setObject(json);
+			repository.persist(item);
+		}
+
+		@Override
+		public Object loadItem(String id) {
+			return repository.load(id);
+		}
+
+		@Override
+		public void updateItem(String id) {
+			repository.require(id).write().count++;
+		}
+
+		@Override
+		public List<?> findItems(String itemId) {
+			return repository.findAll(itemId, FlushModeType.COMMIT);
+		}
+
+		@Override
+		public void deleteAll() {
+			repository.deleteAll();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package io.phaas.viewmanager.benchmark;
+
+import io.phaas.viewmanager.TestViewManager;
+import io.phaas.viewmanager.configuration.TestConfiguration;
+import io.phaas.viewmanager.jpa.JpaTestViewRepository;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Compares the JDBC view manager with the JPA/Hibernate baseline on an embedded H2 database. Every benchmark method
+ * runs a single transaction.
+ * 
+ * @author Patrick Haas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewManagerBenchmark {
+
+	private static final int ITEM_COUNT = 1000;
+	/** Number of times the same entity is accessed in a transaction */
+	private static final int REPEATED_ACCESS = 10;
+
+	@Param({ "jdbc", "jpa" })
+	public String implementation;
+
+	/** Number of entities inserted or updated in a single transaction */
+	@Param({ "100" })
+	public int count;
+
+	private AnnotationConfigApplicationContext context;
+	private TransactionTemplate tx;
+	private ViewAccess access;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void start() {
+		context = new AnnotationConfigApplicationContext(TestConfiguration.class);
+		tx = context.getBean(TransactionTemplate.class);
+		if ("jdbc".equals(implementation)) {
+			access = new ViewAccess.JdbcAccess(context.getBean(TestViewManager.class));
+		} else {
+			access = new ViewAccess.JpaAccess(context.getBean(JpaTestViewRepository.class));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void populate() {
+		access.deleteAll();
+		tx.execute(t -> {
+			for (int i = 0; i < ITEM_COUNT; i++) {
+				access.createItem(id(i));
+			}
+			return null;
+		});
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		context.close();
+	}
+
+	/**
+	 * Load an entity from the database.
+	 */
+	@Benchmark
+	public Object requireMiss() {
+		return tx.execute(t -> access.loadItem(id(next++)));
+	}
+
+	/**
+	 * Load an entity once, then find it in the session.
+	 */
+	@Benchmark
+	public Object requireHit() {
+		String id = id(next++);
+		return tx.execute(t -> {
+			Object result = null;
+			for (int i = 0; i < REPEATED_ACCESS; i++) {
+				result = access.loadItem(id);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Look up an entity that doesn't exist.
+	 */
+	@Benchmark
+	public Object loadMissing() {
+		return tx.execute(t -> access.loadItem("missing-" + next++));
+	}
+
+	/**
+	 * Find entities by query after modifying them, which merges the query results with the session.
+	 */
+	@Benchmark
+	public Object findByGroupId() {
+		String id = id(next++);
+		return tx.execute(t -> {
+			access.updateItem(id);
+			return access.findItems("item." + id);
+		});
+	}
+
+	@Benchmark
+	public void commitInserts() {
+		tx.execute(t -> {
+			for (int i = 0; i < count; i++) {
+				access.createItem("new-" + next++);
+			}
+			return null;
+		});
+	}
+
+	@Benchmark
+	public void commitUpdates() {
+		tx.execute(t -> {
+			for (int i = 0; i < count; i++) {
+				access.updateItem(id(next++));
+			}
+			return null;
+		});
+	}
+
+	private static String id(int i) {
+		return "item-" + i % ITEM_COUNT;
+	}
+}
@@ -1,17 +1,34 @@
 package io.phaas.viewmanager;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.persistence.EntityNotFoundException;
 
-import org.hibernate.ObjectDeletedException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -29,56 +46,222 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  */
 public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends PersistenceAdapter<E>> implements ViewManager<E, I> {
 
-	private static final String SESSION_KEY = io.phaas.viewmanager.ViewManagerSession.class.getCanonicalName();
+	public static final int DEFAULT_SERIALIZATION_BATCH_SIZE = 500;
 
 	// private final JdbcTemplate jdbc;
 	private final ObjectMapper objectMapper;
 
 	private final P persistence;
 
+	/** The name of the view in measurements */
+	private final String view;
+
+	private ViewManagerMetrics metrics = ViewManagerMetrics.NONE;
+
+	private ViewCache cache;
+
+	private ViewCodec<?> codec;
+
+	private WriteBehindQueue writeBehindQueue;
+
+	private Executor serializationExecutor;
+	private int serializationBatchSize = DEFAULT_SERIALIZATION_BATCH_SIZE;
+
+	private volatile boolean concurrentSessions;
+	private volatile boolean detectUnreportedModifications;
+
+	private volatile ViewIdFilter idFilter;
+	/** The ids added to the id filter by transactions that have not completed yet, see {@link #buildIdFilter(int, double)} */
+	private final Set<String[]> uncommittedIds = ConcurrentHashMap.newKeySet();
+
+	private final Map<String, Function<E, ?>> indexes = new LinkedHashMap<>();
+	/** The indexes of the values of indexed columns, by the name of their index, see {@link #addIndex(String)} */
+	private final Map<String, Integer> columnIndexes = new HashMap<>();
+
 	public AbstractViewManager(ObjectMapper objectMapper, P persistence) {
 		this.objectMapper = objectMapper;
 		this.persistence = persistence;
+		this.view = persistence.getTableName();
+		Assert.isTrue(persistence.getVersionIndex() == ViewCache.VERSION, "Rows of " + view
+				+ " must have a version column after the id column, see getObjectValues()");
 	}
 
 	@Override
 	public E require(I id) throws EntityNotFoundException {
+		E result = lookup(id.toString(), true);
+		if (result == null) {
+			throw new EntityNotFoundException("Could not find view with id " + id);
+		}
+		return result;
+	}
+
+	@Override
+	public List<E> loadAll(Collection<I> ids) {
 		ViewManagerSession<E> session = getSession();
 
-		try {
-			E result = session.find(id.toString());
-			if (result != null) {
-				return result;
+		Map<String, E> found = new LinkedHashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (I id : ids) {
+			String key = id.toString();
+			if (found.containsKey(key)) {
+				continue;
+			}
+			try {
+				E item = session.find(key);
+				if (item == null && session.isMissing(key)) {
+					metrics.sessionHit(view);
+					continue;
+				} else if (item == null) {
+					metrics.sessionMiss(view);
+					misses.add(key);
+				} else {
+					metrics.sessionHit(view);
+				}
+				found.put(key, item);
+			} catch (ObjectDeletedException e) {
+				// Removed in this session
+				metrics.sessionHit(view);
 			}
+		}
 
-			result = persistence.select(id.toString());
+		if (!misses.isEmpty()) {
+			for (E item : select(misses)) {
+				found.put(item.getId(), session.addLoadedObject(item, item.getVersion()));
+			}
+		}
 
-			initializeObject(result);
-			session.addLoadedObject(result, result.getVersion());
-			return result;
-		} catch (EmptyResultDataAccessException | ObjectDeletedException e) {
-			throw new EntityNotFoundException(e.getMessage());
+		found.forEach((key, item) -> {
+			if (item == null) {
+				session.addMissing(key);
+			}
+		});
+
+		List<E> result = new ArrayList<>(found.size());
+		for (E item : found.values()) {
+			if (item != null) {
+				result.add(item);
+			}
 		}
+		return result;
+	}
+
+	@Override
+	public List<E> requireAll(Collection<I> ids) throws EntityNotFoundException {
+		List<E> result = loadAll(ids);
+		Set<String> missing = ids.stream().map(Object::toString).collect(Collectors.toCollection(LinkedHashSet::new));
+		if (result.size() < missing.size()) {
+			result.forEach(item -> missing.remove(item.getId()));
+			throw new EntityNotFoundException("Could not find views with ids " + missing);
+		}
+		return result;
+	}
+
+	@Override
+	public void createOrUpdate(I id, Consumer<E> updater) {
+		ViewManagerSession<E> session = getSession();
+		session.addUpsert(id.toString(), updater);
 	}
 
 	@Override
 	public E load(I id) {
+		return lookup(id.toString(), false);
+	}
+
+	/**
+	 * Find an entity in the session, or load it. Ids that could not be found are remembered by the session, so they are
+	 * only looked up once per transaction.
+	 * 
+	 * @param required
+	 *            whether to throw an {@link EntityNotFoundException} if the entity has been removed in this session
+	 */
+	private E lookup(String id, boolean required) {
+		ViewManagerSession<E> session = getSession();
+
 		try {
-			return require(id);
-		} catch (EntityNotFoundException e) {
+			E result = session.find(id);
+			if (result != null) {
+				metrics.sessionHit(view);
+				return result;
+			}
+		} catch (ObjectDeletedException e) {
+			metrics.sessionHit(view);
+			if (required) {
+				throw new EntityNotFoundException(e.getMessage());
+			}
 			return null;
 		}
+		if (session.isMissing(id)) {
+			metrics.sessionHit(view);
+			return null;
+		}
+		metrics.sessionMiss(view);
+
+		E result = select(id);
+		if (result == null) {
+			session.addMissing(id);
+			return null;
+		}
+		return session.addLoadedObject(result, result.getVersion());
 	}
 
 	@Override
 	public void remove(I id) {
 		ViewManagerSession<E> session = getSession();
 		session.addRemovedObject(id.toString());
+		if (cache != null) {
+			cache.invalidate(id.toString());
+		}
 	}
 
 	@Override
 	public void deleteAll() {
+		if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			throw new ReadOnlySessionException("Cannot delete all items in a read-only transaction");
+		}
 		persistence.deleteAll();
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+
+	/**
+	 * Delete all entities and start rebuilding the view, e.g. from an event log. A rebuild keeps its entities in memory
+	 * and writes them in bulk, without the overhead of sessions, see {@link ViewRebuild}.
+	 */
+	public ViewRebuild<E, I> rebuild() {
+		deleteAll();
+		return new ViewRebuild<>(this);
+	}
+
+	/**
+	 * Wrap a task, so that it shares the view manager sessions of the current transaction when it runs on another
+	 * thread, e.g. to process a large batch of events on the workers of an executor. The task may only use view managers
+	 * with {@link #setConcurrentSessions(boolean) concurrent sessions}, and it must finish before the transaction
+	 * commits; the sessions are flushed once, by the thread of the transaction.
+	 * <p>
+	 * Database queries of the task don't take part in the transaction: they use a connection of their own, so they don't
+	 * see rows that the transaction has written by other means. Changes of the sessions are not affected, as they are
+	 * only written when the transaction commits.
+	 */
+	public static <T> Callable<T> shareSessions(Callable<T> task) {
+		return ViewManagerUnitOfWork.share(task);
+	}
+
+	/**
+	 * @see #shareSessions(Callable)
+	 */
+	public static Runnable shareSessions(Runnable task) {
+		Callable<Object> shared = ViewManagerUnitOfWork.share(Executors.callable(task));
+		return () -> {
+			try {
+				shared.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				// Runnables don't throw checked exceptions
+				throw new IllegalStateException(e);
+			}
+		};
 	}
 
 	/**
@@ -98,17 +281,68 @@ public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends
 	 */
 	protected List<E> mergeObjectsWithSession(List<E> databaseResults, Predicate<E> matcher) {
 		ViewManagerSession<E> session = getSession();
+		return mergeObjectsWithSession(session, databaseResults, session.find(matcher), matcher);
+	}
+
+	/**
+	 * Merge a list of entities loaded from the database with the session, using an index declared by
+	 * {@link #addIndex(String, Function)} to find the matching entities in the session.
+	 * 
+	 * @param databaseResults
+	 *            entities found in the database
+	 * @param index
+	 *            the name of the index
+	 * @param value
+	 *            the value of the indexed attribute that was used to select the database results
+	 * @return
+	 */
+	protected List<E> mergeObjectsWithSession(List<E> databaseResults, String index, Object value) {
+		return mergeObjectsWithSession(databaseResults, index, Collections.singleton(value));
+	}
 
-		List<E> sessionResults = session.find(matcher);
+	/**
+	 * Merge a list of entities loaded from the database with the session, using an index declared by
+	 * {@link #addIndex(String, Function)} to find the matching entities in the session.
+	 * 
+	 * @param databaseResults
+	 *            entities found in the database
+	 * @param index
+	 *            the name of the index
+	 * @param values
+	 *            the values of the indexed attribute that were used to select the database results
+	 * @return
+	 */
+	protected List<E> mergeObjectsWithSession(List<E> databaseResults, String index, Collection<?> values) {
+		ViewManagerSession<E> session = getSession();
+		return mergeObjectsWithSession(session, databaseResults, session.find(index, values), indexMatcher(index, values));
+	}
+
+	/**
+	 * @param matcher
+	 *            a Predicate equivalent to the query, which is applied to entities that have been replaced by their
+	 *            queued values
+	 */
+	private List<E> mergeObjectsWithSession(ViewManagerSession<E> session, List<E> databaseResults, List<E> sessionResults,
+			Predicate<E> matcher) {
+		metrics.found(view, databaseResults.size());
 		List<E> result = new ArrayList<>(databaseResults.size() + sessionResults.size());
 		result.addAll(sessionResults);
 
 		Set<String> ids = sessionResults.stream().map(e -> e.getId()).collect(Collectors.toSet());
 
-		for (E item : databaseResults) {
-			if (ids.contains(item.getId())) {
+		for (E loaded : databaseResults) {
+			E item = queued(loaded);
+			if (item != loaded) {
+				discard(loaded);
+				if (item != null && !matcher.test(initializeObject(item))) {
+					// The queued values no longer match the query
+					continue;
+				}
+			}
+			if (item == null || ids.contains(item.getId())) {
 				// Item was found in the database and the session. The object attached to the session
 				// is already part of the result.
+				discard(item);
 				continue;
 			}
 
@@ -116,14 +350,18 @@ public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends
 				E existing = session.find(item.getId());
 				if (existing != null) {
 					// Object in database matched the predicate but the entity in session has been modified
-					// and no longer meets the predicate
+					// and no longer meets the predicate. Entities of a read-only session are unchanged.
+					discard(item);
+					if (!session.isModifiable()) {
+						result.add(existing);
+					}
 				} else {
-					result.add(initializeObject(item));
-					session.addLoadedObject(item, item.getVersion());
+					result.add(session.addLoadedObject(initializeObject(item), item.getVersion()));
 				}
 			} catch (ObjectDeletedException e) {
 				// Object in the database matched the predicate but the entity has since been
 				// queued for removal
+				discard(item);
 				continue;
 			}
 		}
@@ -131,8 +369,365 @@ public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends
 		return result;
 	}
 
+	/**
+	 * Find all entities whose attribute is equal to the value, in the database and in the session. The column must be
+	 * indexed, see {@link #addIndex(String)}, which is used to find the entities in the session.
+	 */
+	protected List<E> findBy(String column, Object value) {
+		return findBy(new String[] { column }, new Object[] { value });
+	}
+
+	/**
+	 * Find all entities whose attributes are equal to the values at the same index, in the database and in the session.
+	 * Every column must be indexed, see {@link #addIndex(String)}.
+	 */
+	protected List<E> findBy(String[] columns, Object[] values) {
+		int[] indexes = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			indexes[i] = columnIndex(columns[i]);
+		}
+
+		Predicate<E> matcher = entity -> {
+			Object[] attributes = getAttributeValues(entity);
+			for (int i = 0; i < columns.length; i++) {
+				if (!Objects.equals(attributes[indexes[i]], values[i])) {
+					return false;
+				}
+			}
+			return true;
+		};
+
+		ViewManagerSession<E> session = getSession();
+		List<E> sessionResults = session.find(columns[0], Collections.singleton(values[0]));
+		if (columns.length > 1) {
+			sessionResults.removeIf(matcher.negate());
+		}
+		return mergeObjectsWithSession(session, persistence.findBy(columns, values), sessionResults, matcher);
+	}
+
+	/**
+	 * Find all entities whose attribute matches one of the values, in the database and in the session. A null value
+	 * matches entities whose attribute is null. The column must be indexed, see {@link #addIndex(String)}.
+	 */
+	protected List<E> findByIn(String column, Collection<?> values) {
+		columnIndex(column);
+		return mergeObjectsWithSession(persistence.findByIn(column, values), column, values);
+	}
+
+	/**
+	 * @return a Predicate that matches entities whose indexed attribute matches one of the values
+	 */
+	private Predicate<E> indexMatcher(String index, Collection<?> values) {
+		Function<E, ?> attribute = indexes.get(index);
+		if (attribute == null) {
+			throw new IllegalArgumentException("Unknown index " + index);
+		}
+		return entity -> values.contains(attribute.apply(entity));
+	}
+
+	private int columnIndex(String column) {
+		Integer index = columnIndexes.get(column);
+		if (index == null) {
+			throw new IllegalArgumentException("No index declared for column " + column);
+		}
+		return index;
+	}
+
+	/**
+	 * Overlay a stream of entities read from the database with the session. The result is equivalent to
+	 * {@link #mergeObjectsWithSession(List, Predicate)}, but entities are read from the database while the stream is
+	 * consumed.
+	 * 
+	 * @param databaseResults
+	 *            entities read from the database, see {@link JdbcPersistenceAdapter#stream(String, Object...)}
+	 * @param matcher
+	 *            a Predicate equivalent to the query that selected the database results
+	 * @param attach
+	 *            whether to attach the entities read from the database to the session. Modifications of detached
+	 *            entities are not saved, but detached entities don't use any memory once they have been consumed.
+	 */
+	protected Stream<E> streamWithSession(Stream<E> databaseResults, Predicate<E> matcher, boolean attach) {
+		ViewManagerSession<E> session = getSession();
+		return streamWithSession(session, databaseResults, session.find(matcher), matcher, attach);
+	}
+
+	/**
+	 * Overlay a stream of entities read from the database with the session, using an index declared by
+	 * {@link #addIndex(String, Function)} to find the matching entities in the session.
+	 * 
+	 * @see #streamWithSession(Stream, Predicate, boolean)
+	 */
+	protected Stream<E> streamWithSession(Stream<E> databaseResults, String index, Object value, boolean attach) {
+		ViewManagerSession<E> session = getSession();
+		Collection<Object> values = Collections.singleton(value);
+		return streamWithSession(session, databaseResults, session.find(index, values), indexMatcher(index, values), attach);
+	}
+
+	private Stream<E> streamWithSession(ViewManagerSession<E> session, Stream<E> databaseResults, List<E> sessionResults,
+			Predicate<E> matcher, boolean attach) {
+		Set<String> ids = sessionResults.stream().map(e -> e.getId()).collect(Collectors.toSet());
+
+		Stream<E> loaded = databaseResults.peek(item -> metrics.found(view, 1)).map(row -> {
+			E item = queued(row);
+			if (item != row) {
+				discard(row);
+				if (item != null && !matcher.test(initializeObject(item))) {
+					// The queued values no longer match the query
+					return null;
+				}
+			}
+			if (item == null || ids.contains(item.getId())) {
+				// The object attached to the session is already part of the result
+				discard(item);
+				return null;
+			}
+			E existing;
+			try {
+				existing = session.find(item.getId());
+			} catch (ObjectDeletedException e) {
+				discard(item);
+				return null;
+			}
+			if (existing != null) {
+				discard(item);
+				// Entities in the session that no longer match are skipped, those of a read-only session are unchanged
+				return session.isModifiable() ? null : existing;
+			}
+			if (!attach) {
+				// Detached entities are not tracked by the session, so their data is moved to the heap
+				item.copySerializedBuffer();
+			}
+			initializeObject(item);
+			return attach ? session.addLoadedObject(item, item.getVersion()) : item;
+		}).filter(Objects::nonNull);
+		return Stream.concat(sessionResults.stream(), loaded);
+	}
+
+	/**
+	 * Replace an entity read from the database with its queued values, see {@link #setWriteBehindQueue(WriteBehindQueue)}
+	 * 
+	 * @return the entity, or null if its removal has been queued
+	 */
+	private E queued(E loaded) {
+		if (writeBehindQueue == null) {
+			return loaded;
+		}
+		Object[] values = writeBehindQueue.get(loaded.getId());
+		if (values == null) {
+			return loaded;
+		}
+		return values == WriteBehindQueue.REMOVED ? null : restoreEntity(values);
+	}
+
+	/**
+	 * Release the pooled buffer of an entity read from the database that isn't part of the result. Only entities that
+	 * have been initialized are released with the session.
+	 */
+	private void discard(E loaded) {
+		PooledBuffer buffer = loaded == null ? null : loaded.takeSerializedBuffer();
+		if (buffer != null) {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Select an entity from the database without attaching it to the session.
+	 * 
+	 * @return the initialized entity, or null if it doesn't exist
+	 */
+	protected E select(String id) {
+		if (writeBehindQueue != null) {
+			Object[] values = writeBehindQueue.get(id);
+			if (values == WriteBehindQueue.REMOVED) {
+				return null;
+			} else if (values != null) {
+				return initializeObject(restoreEntity(values));
+			}
+		}
+
+		if (cache != null) {
+			Object[] values = cache.get(id);
+			if (values != null) {
+				return restoreCached(values, getSession());
+			}
+		}
+
+		ViewIdFilter filter = idFilter;
+		if (filter != null && !filter.mightContain(id)) {
+			return null;
+		}
+
+		try {
+			E result = initializeObject(persistence.select(id));
+			metrics.loaded(view, 1);
+			if (cache != null) {
+				cacheLoaded(result);
+			}
+			return result;
+		} catch (EmptyResultDataAccessException e) {
+			metrics.loaded(view, 0);
+			return null;
+		}
+	}
+
+	/**
+	 * Select entities from the database without attaching them to the session, like {@link #select(String)}. The rows
+	 * that are neither queued nor cached are selected with a single statement.
+	 * 
+	 * @return the initialized entities that exist
+	 */
+	protected List<E> select(Collection<String> ids) {
+		List<E> result = new ArrayList<>(ids.size());
+		List<String> misses = new ArrayList<>(ids);
+		if (writeBehindQueue != null) {
+			for (Iterator<String> it = misses.iterator(); it.hasNext();) {
+				Object[] values = writeBehindQueue.get(it.next());
+				if (values == WriteBehindQueue.REMOVED) {
+					it.remove();
+				} else if (values != null) {
+					result.add(initializeObject(restoreEntity(values)));
+					it.remove();
+				}
+			}
+		}
+
+		if (cache != null && !misses.isEmpty()) {
+			for (Iterator<String> it = misses.iterator(); it.hasNext();) {
+				Object[] values = cache.get(it.next());
+				if (values != null) {
+					result.add(restoreCached(values, getSession()));
+					it.remove();
+				}
+			}
+		}
+
+		ViewIdFilter filter = idFilter;
+		if (filter != null && !misses.isEmpty()) {
+			misses.removeIf(key -> !filter.mightContain(key));
+		}
+
+		if (!misses.isEmpty()) {
+			List<E> loaded = persistence.select(misses);
+			metrics.loaded(view, loaded.size());
+			for (E item : loaded) {
+				result.add(initializeObject(item));
+				if (cache != null) {
+					cacheLoaded(item);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Restore an entity from the values of the cache. Serialized data that is held off-heap is read from its buffer
+	 * until the session releases it.
+	 */
+	private E restoreCached(Object[] values, ViewManagerSession<E> session) {
+		Object data = values[ViewCache.SERIALIZED_DATA];
+		if (!(data instanceof PooledBuffer)) {
+			return initializeObject(restoreEntity(values));
+		}
+		PooledBuffer buffer = (PooledBuffer) data;
+		values[ViewCache.SERIALIZED_DATA] = null;
+		E entity;
+		try {
+			entity = initializeObject(restoreEntity(values));
+		} catch (RuntimeException e) {
+			buffer.release();
+			throw e;
+		}
+		entity.setSerializedBuffer(buffer);
+		session.addBuffered(entity);
+		return entity;
+	}
+
+	/**
+	 * Put an entity that has been loaded from the database into the cache. Serialized data that has been read into a
+	 * pooled buffer is shared with the cache entry instead of being copied.
+	 */
+	private void cacheLoaded(E entity) {
+		PooledBuffer buffer = entity.takeSerializedBuffer();
+		if (buffer == null) {
+			cache.put(getObjectValues(entity));
+			return;
+		}
+		Object[] values;
+		try {
+			// Without its buffer, the serialized data of an unread entity is not copied to the heap
+			values = getObjectValues(entity);
+		} finally {
+			entity.setSerializedBuffer(buffer);
+		}
+		if (buffer.retain()) {
+			values[ViewCache.SERIALIZED_DATA] = buffer;
+			cache.put(values);
+		}
+	}
+
+	/**
+	 * Read the serialized data of an entity again, after its pooled buffer has been released before the object was read.
+	 * The data is taken from the cache or selected from the database, as long as the entity has not been modified since.
+	 */
+	byte[] loadSerializedData(ViewEntity<?> entity) {
+		if (cache != null) {
+			Object[] values = cache.get(entity.getId());
+			if (values != null) {
+				Object data = values[ViewCache.SERIALIZED_DATA];
+				try {
+					if (isVersion(values[ViewCache.VERSION], entity.getVersion())) {
+						return data instanceof PooledBuffer ? ((PooledBuffer) data).toByteArray() : (byte[]) data;
+					}
+				} finally {
+					if (data instanceof PooledBuffer) {
+						((PooledBuffer) data).release();
+					}
+				}
+			}
+		}
+		E loaded;
+		try {
+			loaded = persistence.select(entity.getId());
+		} catch (EmptyResultDataAccessException e) {
+			throw new OptimisticLockingFailureException("Can't read " + entity.getId() + ", it has been removed", e);
+		}
+		metrics.loaded(view, 1);
+		byte[] result = loaded.getSerializedData();
+		if (loaded.getVersion() != entity.getVersion()) {
+			throw new OptimisticLockingFailureException(String.format("Can't read version %d of %s, it has been updated to %d",
+					entity.getVersion(), entity.getId(), loaded.getVersion()));
+		}
+		return result;
+	}
+
+	private static boolean isVersion(Object value, long version) {
+		return value instanceof Number && ((Number) value).longValue() == version;
+	}
+
+	/**
+	 * @return the values of an entity without its serialized data, which is neither serialized nor copied from a pooled
+	 *         buffer
+	 */
+	Object[] getAttributeValues(E entity) {
+		return entity.withoutSerializedData(() -> getObjectValues(entity));
+	}
+
 	protected E initializeObject(E entity) {
 		entity.setObjectMapper(objectMapper);
+		entity.setMetrics(metrics, view);
+		if (entity.hasSerializedBuffer()) {
+			// Read into a pooled buffer by the persistence adapter, which is released with the session
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				getSession().addBuffered(entity);
+			} else {
+				entity.copySerializedBuffer();
+			}
+		}
+		if (codec == null) {
+			// Entities of the same type share the readers and writers of a codec
+			codec = entity.getCodec();
+		}
+		entity.setCodec(codec);
 		return entity;
 	}
 
@@ -149,39 +744,298 @@ public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends
 	}
 
 	private ViewManagerSession<E> getSession() {
-		@SuppressWarnings("unchecked")
-		ViewManagerSession<E> session = (ViewManagerSession<E>) TransactionSynchronizationManager.getResource(SESSION_KEY);
-		if (session != null) {
-			return session;
-		}
+		return ViewManagerUnitOfWork.current().getSession(this);
+	}
 
-		final ViewManagerSession<E> newSession = new ViewManagerSession<>(this);
-		TransactionSynchronizationManager.bindResource(SESSION_KEY, newSession);
-		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
-			@Override
-			public void beforeCommit(boolean readOnly) {
-				newSession.commit();
-			}
+	protected void insert(E object) {
+		Object[] values = getObjectValues(object);
+		addToIdFilter(Collections.singletonList(values));
+		persistence.insert(values);
+	}
 
-			@Override
-			public void afterCompletion(int status) {
-				TransactionSynchronizationManager.unbindResource(SESSION_KEY);
+	protected void insert(List<Object[]> rows) {
+		addToIdFilter(rows);
+		if (writeBehindQueue != null) {
+			getSession().writeBehind().insert(rows);
+			return;
+		}
+		persistence.insert(rows);
+	}
 
-			}
-		});
-		return newSession;
+	protected boolean[] insertIfAbsent(List<Object[]> rows) {
+		addToIdFilter(rows);
+		return persistence.insertIfAbsent(rows);
 	}
 
-	protected void insert(E object) {
-		persistence.insert(getObjectValues(object));
+	/**
+	 * Add the ids of rows that are about to be inserted to the id filter. Ids must be added before their rows can be
+	 * read by any transaction. Until the transaction completes, the ids are also added to filters that are built in the
+	 * meantime, whose scan of the table may not see the rows.
+	 */
+	void addToIdFilter(List<Object[]> rows) {
+		String[] ids = new String[rows.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = rows.get(i)[0].toString();
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// Registered before the filter is read, see buildIdFilter()
+			uncommittedIds.add(ids);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					uncommittedIds.remove(ids);
+				}
+			});
+		}
+		ViewIdFilter filter = idFilter;
+		if (filter != null) {
+			for (String id : ids) {
+				filter.put(id);
+			}
+		}
 	}
 
 	protected void update(E object, long version) {
 		persistence.update(getObjectValues(object), version);
 	}
 
+	protected void update(List<Object[]> rows, long[] versions) {
+		update(rows, versions, null);
+	}
+
+	/**
+	 * @param modified
+	 *            for each row, the indexes of the values that have changed, or null to update all values. Queued
+	 *            updates of a {@link WriteBehindQueue} always update all values.
+	 */
+	protected void update(List<Object[]> rows, long[] versions, BitSet[] modified) {
+		if (writeBehindQueue != null) {
+			getSession().writeBehind().update(rows, versions);
+			return;
+		}
+		try {
+			if (modified == null) {
+				persistence.update(rows, versions);
+			} else {
+				persistence.update(rows, versions, modified);
+			}
+		} catch (OptimisticLockingFailureException e) {
+			if (cache != null) {
+				// At least one of the cached rows is stale
+				rows.forEach(row -> cache.invalidate(row[0].toString()));
+			}
+			throw e;
+		}
+	}
+
 	protected void delete(Set<String> ids) {
-		persistence.delete(ids);
+		if (writeBehindQueue != null) {
+			getSession().writeBehind().delete(ids);
+			return;
+		}
+		try {
+			persistence.delete(ids);
+		} catch (OptimisticLockingFailureException e) {
+			if (cache != null) {
+				cache.invalidateAll(ids);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Called after the transaction of a session has completed.
+	 * 
+	 * @param written
+	 *            the values of all inserted and updated entities
+	 * @param removed
+	 *            the ids of all removed entities
+	 * @param committed
+	 *            whether the transaction has been committed
+	 */
+	protected void afterCompletion(List<Object[]> written, Collection<String> removed, boolean committed) {
+		if (cache != null && committed) {
+			cache.invalidateAll(removed);
+			cache.putAll(written);
+		}
+	}
+
+	/**
+	 * Declare an attribute that is used to find entities. Sessions keep a hash index of their entities by the value of
+	 * this attribute, which is used by {@link #mergeObjectsWithSession(List, String, Collection)}. Setters of the
+	 * attribute must call {@link ViewEntity#modified()}.
+	 * 
+	 * @param name
+	 *            the name of the index
+	 * @param attribute
+	 *            accessor for the indexed attribute
+	 */
+	protected void addIndex(String name, Function<E, ?> attribute) {
+		indexes.put(name, attribute);
+		columnIndexes.remove(name);
+	}
+
+	/**
+	 * Declare an index of a column of the persistence adapter, which is used by the finders, e.g.
+	 * {@link #findBy(String, Object)}. The indexed attribute is the value that {@link #getObjectValues(ViewEntity)}
+	 * produces for the column, so the session matches the same values as the database. Setters of the attribute must
+	 * call {@link ViewEntity#modified()}.
+	 * 
+	 * @param column
+	 *            the name of the column, which is the name of the index
+	 */
+	protected void addIndex(String column) {
+		int index = persistence.getColumnIndex(column);
+		addIndex(column, entity -> getAttributeValues(entity)[index]);
+		columnIndexes.put(column, index);
+	}
+
+	Map<String, Function<E, ?>> getIndexes() {
+		return indexes;
+	}
+
+	public ViewCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Use a second-level cache that is shared across transactions. Entities are restored from cached values by
+	 * {@link #restoreEntity(Object[])}.
+	 */
+	public void setCache(ViewCache cache) {
+		this.cache = cache;
+	}
+
+	public ViewCodec<?> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Use a codec other than JSON for the serialized data of all entities, see {@link JacksonViewCodec}. The codec
+	 * must be able to read all formats that may be stored in the table.
+	 */
+	public void setCodec(ViewCodec<?> codec) {
+		this.codec = codec;
+	}
+
+	public ViewManagerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Report measurements of this view manager (and of its {@link JdbcPersistenceAdapter}). The table name of the view
+	 * manager is used as the name of the view.
+	 */
+	public void setMetrics(ViewManagerMetrics metrics) {
+		Assert.notNull(metrics, "Metrics must not be null, use ViewManagerMetrics.NONE");
+		this.metrics = metrics;
+		if (persistence instanceof JdbcPersistenceAdapter) {
+			((JdbcPersistenceAdapter<?>) persistence).setMetrics(metrics);
+		}
+	}
+
+	public ViewIdFilter getIdFilter() {
+		return idFilter;
+	}
+
+	/**
+	 * Keep a Bloom filter of the ids of the view, so that loading an id that definitely doesn't exist skips the
+	 * database. The filter is built by reading all ids of the table; loads are not filtered until it is complete. Ids are
+	 * added to the filter before they are inserted. Transactions that have added ids to the previous filter, and may
+	 * commit after the table has been read, add their ids to the new filter before it is complete.
+	 * <p>
+	 * Ids can't be removed from a Bloom filter, so the ids of deleted rows are only dropped when the filter is built
+	 * again. Like the {@link ViewCache}, the filter only sees the rows inserted through this view manager; it must not be
+	 * used for tables that other processes insert into.
+	 * 
+	 * @param expectedIds
+	 *            the expected number of ids, including those inserted until the filter is built again
+	 * @param falsePositiveProbability
+	 *            the desired probability that an id that doesn't exist is looked up in the database
+	 */
+	public void buildIdFilter(int expectedIds, double falsePositiveProbability) {
+		ViewIdFilter filter = new ViewIdFilter(expectedIds, falsePositiveProbability);
+		// Ids that are inserted while the filter is built are added as well
+		this.idFilter = filter;
+		// Transactions that have read the previous filter have registered their ids by now. Those that complete before
+		// the ids are read have committed their rows; the others are added below.
+		List<String[]> uncommitted = new ArrayList<>(uncommittedIds);
+		persistence.forEachId(filter::put);
+		for (String[] ids : uncommitted) {
+			for (String id : ids) {
+				filter.put(id);
+			}
+		}
+		filter.complete();
+	}
+
+	/**
+	 * Stop filtering ids, see {@link #buildIdFilter(int, double)}.
+	 */
+	public void removeIdFilter() {
+		this.idFilter = null;
+	}
+
+	public WriteBehindQueue getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
+
+	/**
+	 * Write the changes of committed transactions in the background, instead of writing them in the transaction that
+	 * made them. Entities are restored from queued values by {@link #restoreEntity(Object[])}, and the queue must use the
+	 * same persistence adapter. See {@link WriteBehindQueue} for the consistency guarantees of this mode.
+	 */
+	public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+		this.writeBehindQueue = writeBehindQueue;
+	}
+
+	public Executor getSerializationExecutor() {
+		return serializationExecutor;
+	}
+
+	/**
+	 * Serialize modified entities on an executor (e.g. a {@link java.util.concurrent.ForkJoinPool}) when a session is
+	 * committed. The entities are serialized in batches of {@link #setSerializationBatchSize(int)} entities, which are
+	 * written to the database while the following batches are serialized. By default, entities are serialized by the
+	 * thread that commits the transaction.
+	 */
+	public void setSerializationExecutor(Executor serializationExecutor) {
+		this.serializationExecutor = serializationExecutor;
+	}
+
+	public boolean isConcurrentSessions() {
+		return concurrentSessions;
+	}
+
+	/**
+	 * Use sessions that may be shared by several threads of the same transaction, see
+	 * {@link #shareSessions(Callable)}. Sessions of the view manager must not be open while this is changed.
+	 */
+	public void setConcurrentSessions(boolean concurrentSessions) {
+		this.concurrentSessions = concurrentSessions;
+	}
+
+	public boolean isDetectUnreportedModifications() {
+		return detectUnreportedModifications;
+	}
+
+	/**
+	 * Compare all loaded entities with a snapshot of their attributes when a session is committed, so that attributes
+	 * whose setters don't call {@link ViewEntity#modified()} are written as well. Off by default, as it makes each
+	 * commit proportional to the number of loaded entities. Sessions of the view manager must not be open while this is
+	 * changed.
+	 */
+	public void setDetectUnreportedModifications(boolean detectUnreportedModifications) {
+		this.detectUnreportedModifications = detectUnreportedModifications;
+	}
+
+	public int getSerializationBatchSize() {
+		return serializationBatchSize;
+	}
+
+	public void setSerializationBatchSize(int serializationBatchSize) {
+		Assert.isTrue(serializationBatchSize > 0, "Serialization batch size must be positive");
+		this.serializationBatchSize = serializationBatchSize;
 	}
 
 	protected ObjectMapper getObjectMapper() {
@@ -192,9 +1046,40 @@ public abstract class AbstractViewManager<E extends ViewEntity<?>, I, P extends
 		return persistence;
 	}
 
+	/**
+	 * @return the values of all columns of the entity, in the order of the columns of the persistence adapter. Sessions,
+	 *         the {@link ViewCache} and the {@link WriteBehindQueue} rely on the id, the version and the serialized data
+	 *         being the first three values, in that order.
+	 */
 	protected abstract Object[] getObjectValues(E entity);
 
+	/**
+	 * Create an entity from the values produced by {@link #getObjectValues(ViewEntity)}, e.g. the values of a
+	 * {@link ViewCache} entry. The serialized data may be shared with the cache and must not be modified.
+	 */
+	protected abstract E restoreEntity(Object[] values);
+
+	/**
+	 * Create a new, empty entity for {@link #createOrUpdate(Object, Consumer)}.
+	 */
+	protected abstract E newEntity(String id);
+
 	protected abstract void incrementVersion(E entity);
 
-	protected abstract boolean isModified(E entity);
+	/**
+	 * Determine which values of a loaded entity must be written to the database, by comparing the values produced by
+	 * {@link #getObjectValues(ViewEntity)} when the entity was loaded with its current values. Entities that have only
+	 * been read are not modified.
+	 * 
+	 * @return the indexes of all values that have changed, empty if the entity is not modified
+	 */
+	protected BitSet getModifiedValues(Object[] loadedValues, Object[] currentValues) {
+		BitSet modified = new BitSet(currentValues.length);
+		for (int i = 0; i < currentValues.length; i++) {
+			if (!Objects.deepEquals(loadedValues[i], currentValues[i])) {
+				modified.set(i);
+			}
+		}
+		return modified;
+	}
 }
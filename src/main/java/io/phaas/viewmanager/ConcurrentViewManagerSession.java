@@ -0,0 +1,123 @@
+package io.phaas.viewmanager;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A session that may be used by several threads of the same transaction at once, see
+ * {@link AbstractViewManager#setConcurrentSessions(boolean)}.
+ * <p>
+ * The state of the session is kept in concurrent maps. Every change of a single id (loading, adding, removing or
+ * resolving an upsert) holds one of a fixed number of striped locks, so each id moves between the loaded, added and
+ * removed states atomically, and concurrent loads of the same id return the same entity. Queries don't lock; they see
+ * all entities that have been attached when they run. Updaters of {@link #addUpsert(String, Consumer)} run while their
+ * id is locked and must not access other entities.
+ * <p>
+ * A single entity must not be modified by several threads at once. The session is committed exactly once, after all
+ * worker threads have finished.
+ *
+ * @author Patrick Haas
+ */
+class ConcurrentViewManagerSession<E extends ViewEntity<?>> extends ViewManagerSession<E> {
+
+	private static final int STRIPES = 64;
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private final AtomicBoolean committed = new AtomicBoolean();
+
+	ConcurrentViewManagerSession(AbstractViewManager<E, ?, ?> vm) {
+		super(vm, true);
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	@Override
+	public void add(E entity) {
+		ReentrantLock lock = lock(entity.getId());
+		lock.lock();
+		try {
+			super.add(entity);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E addLoadedObject(E entity, long version) {
+		ReentrantLock lock = lock(entity.getId());
+		lock.lock();
+		try {
+			return super.addLoadedObject(entity, version);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void addRemovedObject(String id) {
+		ReentrantLock lock = lock(id);
+		lock.lock();
+		try {
+			super.addRemovedObject(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void addUpsert(String id, Consumer<E> updater) {
+		ReentrantLock lock = lock(id);
+		lock.lock();
+		try {
+			super.addUpsert(id, updater);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E find(String id) {
+		ReentrantLock lock = lock(id);
+		lock.lock();
+		try {
+			return super.find(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	E resolve(Upsert<E> upsert, E existing) {
+		ReentrantLock lock = lock(upsert.id);
+		lock.lock();
+		try {
+			return super.resolve(upsert, existing);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void reindex(E entity) {
+		ReentrantLock lock = lock(entity.getId());
+		lock.lock();
+		try {
+			super.reindex(entity);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void commit() {
+		if (committed.compareAndSet(false, true)) {
+			super.commit();
+		}
+	}
+
+	private ReentrantLock lock(String id) {
+		return locks[id.hashCode() & (STRIPES - 1)];
+	}
+}
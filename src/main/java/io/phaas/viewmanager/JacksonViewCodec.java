@@ -0,0 +1,245 @@
+package io.phaas.viewmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * A codec for any data format supported by a Jackson {@link ObjectMapper}: JSON, Smile or CBOR.
+ * <p>
+ * Binary formats are written with a leading format byte, so rows of different formats can coexist in the same table.
+ * JSON is written without a header, like the rows written before codecs have been introduced. A codec writes a single
+ * format, but reads all formats of the mappers it has been created with.
+ * <p>
+ * Large objects can be compressed, see {@link #setCompressionThreshold(int)}. Compressed data has a header of its own
+ * and is decompressed while it is parsed.
+ *
+ * @author Patrick Haas
+ */
+public class JacksonViewCodec<T> implements ViewCodec<T> {
+
+	public static final byte JSON = 0;
+	public static final byte SMILE = 1;
+	public static final byte CBOR = 2;
+	/** Header of deflated data, which is followed by the deflated data of one of the other formats */
+	public static final byte DEFLATE = 3;
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+	private final byte format;
+	private final JsonFactory factory;
+	private final ObjectWriter writer;
+	/** Readers and factories by format byte */
+	private final ObjectReader[] readers = new ObjectReader[3];
+	private final JsonFactory[] factories = new JsonFactory[3];
+
+	private int compressionThreshold = Integer.MAX_VALUE;
+
+	/**
+	 * @param type
+	 *            the type of the objects
+	 * @param mapper
+	 *            the mapper used to write (and read) objects
+	 * @param readMappers
+	 *            mappers used to read objects written in other formats
+	 */
+	public JacksonViewCodec(TypeReference<T> type, ObjectMapper mapper, ObjectMapper... readMappers) {
+		this.format = format(mapper.getFactory());
+		this.factory = mapper.getFactory();
+		// Objects are written by their runtime type, so the properties of subclasses are not lost
+		this.writer = mapper.writer();
+		for (ObjectMapper readMapper : readMappers) {
+			byte readFormat = format(readMapper.getFactory());
+			readers[readFormat] = readMapper.readerFor(type);
+			factories[readFormat] = readMapper.getFactory();
+		}
+		readers[format] = mapper.readerFor(type);
+		factories[format] = factory;
+	}
+
+	@Override
+	public byte[] encode(T object) throws IOException {
+		// The builder uses the recycled buffers of the current thread
+		ByteArrayBuilder builder = new ByteArrayBuilder(factory._getBufferRecycler());
+		try {
+			if (format != JSON) {
+				builder.write(format);
+			}
+			writer.writeValue(builder, object);
+			byte[] data = builder.toByteArray();
+			return data.length < compressionThreshold ? data : compress(data);
+		} finally {
+			builder.release();
+		}
+	}
+
+	@Override
+	public T decode(byte[] data) throws IOException {
+		if (isCompressed(data)) {
+			try (PushbackInputStream in = decompress(data)) {
+				return reader(formatOf(in)).readValue(in);
+			}
+		}
+
+		byte format = formatOf(data);
+		int offset = format == JSON ? 0 : 1;
+		return reader(format).readValue(data, offset, data.length - offset);
+	}
+
+	@Override
+	public JsonParser createParser(byte[] data) throws IOException {
+		if (isCompressed(data)) {
+			// The stream is closed (and its inflater released) with the parser
+			PushbackInputStream in = decompress(data);
+			return factory(formatOf(in)).createParser(in);
+		}
+
+		byte format = formatOf(data);
+		int offset = format == JSON ? 0 : 1;
+		return factory(format).createParser(data, offset, data.length - offset);
+	}
+
+	@Override
+	public T decode(ByteBuffer data) throws IOException {
+		try (PushbackInputStream in = open(data)) {
+			return reader(formatOf(in)).readValue(in);
+		}
+	}
+
+	@Override
+	public JsonParser createParser(ByteBuffer data) throws IOException {
+		PushbackInputStream in = open(data);
+		return factory(formatOf(in)).createParser(in);
+	}
+
+	@Override
+	public boolean isJson(byte[] data) {
+		return !isCompressed(data) && formatOf(data) == JSON;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Compress the serialized data of objects whose uncompressed size is at least this number of bytes. Data is not
+	 * compressed by default; compressed and uncompressed data can always be read.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		Assert.isTrue(compressionThreshold >= 0, "Compression threshold must not be negative");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	private byte[] compress(byte[] data) {
+		Deflater deflater = DEFLATER.get();
+		ByteArrayBuilder builder = new ByteArrayBuilder(factory._getBufferRecycler());
+		try {
+			builder.write(DEFLATE);
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = builder.getCurrentSegment();
+			int length = builder.getCurrentSegmentLength();
+			while (!deflater.finished()) {
+				if (length == buffer.length) {
+					buffer = builder.finishCurrentSegment();
+					length = 0;
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			builder.setCurrentSegmentLength(length);
+			return builder.toByteArray();
+		} finally {
+			deflater.reset();
+			builder.release();
+		}
+	}
+
+	private static PushbackInputStream decompress(byte[] data) {
+		return new PushbackInputStream(new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1)));
+	}
+
+	/**
+	 * Stream the data of a buffer, without changing its position, and decompress it if necessary.
+	 */
+	private static PushbackInputStream open(ByteBuffer data) {
+		ByteBuffer buffer = data.duplicate();
+		InputStream in = new ByteBufferBackedInputStream(buffer);
+		if (buffer.hasRemaining() && buffer.get(buffer.position()) == DEFLATE) {
+			buffer.get();
+			in = new InflaterInputStream(in);
+		}
+		return new PushbackInputStream(in);
+	}
+
+	private static boolean isCompressed(byte[] data) {
+		return data.length > 0 && data[0] == DEFLATE;
+	}
+
+	private ObjectReader reader(byte format) {
+		ObjectReader reader = readers[format];
+		if (reader == null) {
+			throw new IllegalStateException("No mapper for format " + format);
+		}
+		return reader;
+	}
+
+	private JsonFactory factory(byte format) {
+		JsonFactory factory = factories[format];
+		if (factory == null) {
+			throw new IllegalStateException("No mapper for format " + format);
+		}
+		return factory;
+	}
+
+	/**
+	 * Read the format header of decompressed data, if there is one.
+	 */
+	private static byte formatOf(PushbackInputStream in) throws IOException {
+		int header = in.read();
+		if (header == SMILE || header == CBOR) {
+			return (byte) header;
+		}
+		if (header >= 0) {
+			in.unread(header);
+		}
+		return JSON;
+	}
+
+	/**
+	 * JSON text never starts with a control character other than whitespace, so it can't be mistaken for a header.
+	 */
+	private static byte formatOf(byte[] data) {
+		if (data.length > 0 && (data[0] == SMILE || data[0] == CBOR)) {
+			return data[0];
+		}
+		return JSON;
+	}
+
+	private static byte format(JsonFactory factory) {
+		switch (factory.getFormatName()) {
+		case JsonFactory.FORMAT_NAME_JSON:
+			return JSON;
+		case "Smile":
+			return SMILE;
+		case "CBOR":
+			return CBOR;
+		default:
+			throw new IllegalArgumentException("Unsupported format " + factory.getFormatName());
+		}
+	}
+}
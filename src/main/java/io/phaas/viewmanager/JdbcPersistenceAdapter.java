@@ -1,18 +1,58 @@
 package io.phaas.viewmanager;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.sql.DataSource;
 
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.util.Assert;
 
 public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_MAX_BATCH_BYTES = 8 * 1024 * 1024;
+	public static final int DEFAULT_MAX_IN_CLAUSE_SIZE = 100;
+	public static final int DEFAULT_FETCH_SIZE = 500;
+
+	/**
+	 * Binds the values of a single row to a statement that is part of a JDBC batch.
+	 */
+	protected interface RowSetter {
+		void setValues(PreparedStatement ps, Object[] row, int rowIndex) throws SQLException;
+	}
+
 	private final JdbcTemplate jdbc;
 
 	private final String tableName;
@@ -21,9 +61,29 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 	private final String[] otherColumns;
 
 	private final String jdbcInsert;
+	private final String jdbcInsertIfAbsent;
 	private final String jdbcSelect;
+	private final String jdbcSelectIds;
 	private final String jdbcUpdate;
+	private final String jdbcUncheckedUpdate;
+	private String jdbcMultiRowInsert;
 	private final RowMapper<E> rowMapper;
+	/** SELECT statements of finders, by their condition */
+	private final Map<String, String> finders = new ConcurrentHashMap<>();
+	/** DELETE statements, by the number of ids */
+	private final Map<Integer, String> deletes = new ConcurrentHashMap<>();
+	/** UPDATE statements of a subset of the columns, by the indexes of the updated columns */
+	private final Map<BitSet, String> partialUpdates = new ConcurrentHashMap<>();
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private volatile boolean batchUpdateCounts = true;
+	private int multiRowInsertSize = 1;
+	private int maxInClauseSize = DEFAULT_MAX_IN_CLAUSE_SIZE;
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+
+	private ViewManagerMetrics metrics = ViewManagerMetrics.NONE;
+	private ViewBufferPool bufferPool;
 
 	public JdbcPersistenceAdapter(DataSource dataSource, RowMapper<E> rowMapper, String tableName, String idColumn, String versionColumn,
 			String... otherColumns) {
@@ -34,13 +94,246 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		this.otherColumns = otherColumns;
 		this.jdbc = new JdbcTemplate(dataSource);
 		jdbcInsert = buildInsertStatement(tableName, idColumn, versionColumn, otherColumns);
+		jdbcInsertIfAbsent = buildInsertIfAbsentStatement(tableName, idColumn, versionColumn, otherColumns);
 		jdbcSelect = buildSelectStatement(tableName, idColumn, versionColumn, otherColumns);
+		jdbcSelectIds = buildSelectIdsStatement(tableName, idColumn);
 		jdbcUpdate = buildUpdateStatement(tableName, idColumn, versionColumn, otherColumns);
+		jdbcUncheckedUpdate = buildUncheckedUpdateStatement(tableName, idColumn, versionColumn, otherColumns);
+	}
+
+	@Override
+	public String getTableName() {
+		return tableName;
 	}
 
 	@Override
 	public E select(String id) {
-		return jdbc.queryForObject(jdbcSelect, rowMapper, id);
+		return jdbc.queryForObject(jdbcSelect, this::mapRow, id);
+	}
+
+	@Override
+	public List<E> select(Collection<String> ids) {
+		return selectWhereIn(idColumn, ids);
+	}
+
+	/**
+	 * Select all rows whose columns are equal to the values at the same index, e.g.
+	 * <code>findBy(new String[] { "ITEM_ID", "KEY" }, new Object[] { itemId, key })</code>. Null values match NULL
+	 * columns. The columns must be columns of this adapter; statements are built once for each combination of columns.
+	 */
+	@Override
+	public List<E> findBy(String[] columns, Object[] values) {
+		Assert.isTrue(columns.length > 0 && columns.length == values.length, "Expected one value for each column");
+
+		StringBuilder condition = new StringBuilder();
+		List<Object> args = new ArrayList<>(values.length);
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				condition.append(" AND ");
+			}
+			condition.append(column(columns[i]));
+			if (values[i] == null) {
+				condition.append(" IS NULL");
+			} else {
+				condition.append(" = ?");
+				args.add(values[i]);
+			}
+		}
+		return jdbc.query(finder(condition.toString()), this::mapRow, args.toArray());
+	}
+
+	/**
+	 * Select all rows where a column equals the value.
+	 * 
+	 * @see #findBy(String[], Object[])
+	 */
+	public List<E> findBy(String column, Object value) {
+		return findBy(new String[] { column }, new Object[] { value });
+	}
+
+	/**
+	 * Select all rows where <code>column</code> matches one of the given values, see
+	 * {@link #selectWhereIn(String, Collection)}. The column must be a column of this adapter. A null value matches
+	 * NULL columns, which <code>IN (NULL)</code> doesn't.
+	 */
+	@Override
+	public List<E> findByIn(String column, Collection<?> values) {
+		Set<Object> distinct = new LinkedHashSet<>(values);
+		if (!distinct.remove(null)) {
+			return selectWhereIn(column(column), distinct);
+		}
+		List<E> result = findBy(column, null);
+		result.addAll(selectWhereIn(column(column), distinct));
+		return result;
+	}
+
+	@Override
+	public int getColumnIndex(String name) {
+		if (name.equalsIgnoreCase(idColumn)) {
+			return 0;
+		}
+		int firstColumn = versionColumn == null ? 1 : 2;
+		for (int i = 0; i < otherColumns.length; i++) {
+			if (name.equalsIgnoreCase(otherColumns[i])) {
+				return firstColumn + i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown column " + name + " of " + tableName);
+	}
+
+	@Override
+	public int getVersionIndex() {
+		return versionColumn == null ? -1 : 1;
+	}
+
+	/**
+	 * Select all rows where <code>column</code> matches one of the given values. Large collections are split into
+	 * multiple queries of at most {@link #getMaxInClauseSize()} values.
+	 */
+	protected List<E> selectWhereIn(String column, Collection<?> values) {
+		List<E> result = new ArrayList<>(values.size());
+		for (Object[] chunk : chunk(new LinkedHashSet<>(values))) {
+			String sql = finder(column + " IN (" + params(chunk.length) + ")");
+			result.addAll(jdbc.query(sql, this::mapRow, chunk));
+		}
+		return result;
+	}
+
+	/**
+	 * Split values into chunks of at most {@link #getMaxInClauseSize()} values for <code>IN (...)</code> clauses. Each
+	 * chunk is padded to a power of 4 (or the maximum size) by repeating its last value, so that only a few different
+	 * statements are ever prepared.
+	 */
+	protected List<Object[]> chunk(Collection<?> values) {
+		List<Object[]> chunks = new ArrayList<>(values.size() / maxInClauseSize + 1);
+		Object[] remaining = values.toArray();
+		for (int start = 0; start < remaining.length; start += maxInClauseSize) {
+			int size = Math.min(maxInClauseSize, remaining.length - start);
+			int padded = 1;
+			while (padded < size) {
+				padded *= 4;
+			}
+			Object[] chunk = Arrays.copyOfRange(remaining, start, start + Math.min(padded, maxInClauseSize));
+			Arrays.fill(chunk, size, chunk.length, chunk[size - 1]);
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Execute a query and pass each row to the callback as soon as it has been read. Rows are fetched from the database
+	 * in batches of {@link #getFetchSize()} rows, the full result is never held in memory.
+	 */
+	public void query(String sql, Consumer<E> callback, Object... args) {
+		jdbc.query(con -> prepareStreamingStatement(con, sql, args), new RowCallbackHandler() {
+			private int rowNum = 0;
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				callback.accept(mapRow(rs, rowNum++));
+			}
+		});
+	}
+
+	/**
+	 * Execute a query and return a stream that reads the rows while it is consumed. Rows are fetched from the database in
+	 * batches of {@link #getFetchSize()} rows. The serialized data of each entity is only deserialized when it is read.
+	 * <p>
+	 * The stream holds on to a connection and must be closed, e.g. with a try-with-resources statement.
+	 */
+	public Stream<E> stream(String sql, Object... args) {
+		DataSource dataSource = jdbc.getDataSource();
+		Connection con = DataSourceUtils.getConnection(dataSource);
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			ps = prepareStreamingStatement(con, sql, args);
+			rs = ps.executeQuery();
+		} catch (SQLException e) {
+			JdbcUtils.closeResultSet(rs);
+			JdbcUtils.closeStatement(ps);
+			DataSourceUtils.releaseConnection(con, dataSource);
+			throw jdbc.getExceptionTranslator().translate("Stream", sql, e);
+		}
+
+		final PreparedStatement statement = ps;
+		final ResultSet resultSet = rs;
+		Spliterator<E> rows = new Spliterators.AbstractSpliterator<E>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+			private int rowNum = 0;
+
+			@Override
+			public boolean tryAdvance(Consumer<? super E> action) {
+				try {
+					if (!resultSet.next()) {
+						return false;
+					}
+					action.accept(mapRow(resultSet, rowNum++));
+					return true;
+				} catch (SQLException e) {
+					throw jdbc.getExceptionTranslator().translate("Stream", sql, e);
+				}
+			}
+		};
+		return StreamSupport.stream(rows, false).onClose(() -> {
+			JdbcUtils.closeResultSet(resultSet);
+			JdbcUtils.closeStatement(statement);
+			DataSourceUtils.releaseConnection(con, dataSource);
+		});
+	}
+
+	/**
+	 * Stream all rows where <code>column</code> equals the value.
+	 * 
+	 * @see #stream(String, Object...)
+	 */
+	public Stream<E> streamWhere(String column, Object value) {
+		return stream(buildSelectWhereStatement(tableName, column, idColumn, versionColumn, otherColumns), value);
+	}
+
+	/**
+	 * Ids are fetched in batches of {@link #getFetchSize()} rows.
+	 */
+	@Override
+	public void forEachId(Consumer<String> callback) {
+		jdbc.query(con -> prepareStreamingStatement(con, jdbcSelectIds), (RowCallbackHandler) rs -> callback.accept(rs.getString(1)));
+	}
+
+	private String finder(String condition) {
+		String sql = finders.get(condition);
+		if (sql == null) {
+			sql = buildFinderStatement(tableName, condition, idColumn, versionColumn, otherColumns);
+			finders.put(condition, sql);
+		}
+		return sql;
+	}
+
+	/**
+	 * @return the name of a column of this adapter
+	 * @throws IllegalArgumentException
+	 *             if the adapter doesn't have the column
+	 */
+	private String column(String name) {
+		if (name.equalsIgnoreCase(idColumn)) {
+			return idColumn;
+		}
+		for (String column : otherColumns) {
+			if (name.equalsIgnoreCase(column)) {
+				return column;
+			}
+		}
+		throw new IllegalArgumentException("Unknown column " + name + " of " + tableName);
+	}
+
+	private PreparedStatement prepareStreamingStatement(Connection con, String sql, Object... args) throws SQLException {
+		PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			ps.setFetchSize(fetchSize);
+			new ArgumentPreparedStatementSetter(args).setValues(ps);
+			return ps;
+		} catch (SQLException e) {
+			JdbcUtils.closeStatement(ps);
+			throw e;
+		}
 	}
 
 	@Override
@@ -48,40 +341,162 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		jdbc.update(jdbcInsert, params);
 	}
 
+	@Override
+	public void insert(List<Object[]> rows) {
+		int multiRowCount = rows.size() / multiRowInsertSize;
+		if (multiRowInsertSize > 1 && multiRowCount > 0) {
+			// Full groups of rows share a single multi-row INSERT statement, the remainder is inserted row by row
+			List<Object[]> groups = new ArrayList<>(multiRowCount);
+			for (int group = 0; group < multiRowCount; group++) {
+				groups.add(concat(rows.subList(group * multiRowInsertSize, (group + 1) * multiRowInsertSize)));
+			}
+			executeBatch(jdbcMultiRowInsert, groups, (ps, row, rowIndex) -> setInsertValues(ps, row));
+			rows = rows.subList(multiRowCount * multiRowInsertSize, rows.size());
+		}
+		if (!rows.isEmpty()) {
+			executeBatch(jdbcInsert, rows, (ps, row, rowIndex) -> setInsertValues(ps, row));
+		}
+	}
+
+	@Override
+	public boolean[] insertIfAbsent(List<Object[]> rows) {
+		int[] counts;
+		try {
+			counts = executeCheckedBatch(jdbcInsertIfAbsent, rows, (ps, row, rowIndex) -> setInsertIfAbsentValues(ps, row));
+		} catch (DuplicateKeyException e) {
+			// A row has been inserted by another transaction after the statement has checked for it
+			metrics.optimisticLockFailure(tableName);
+			throw new OptimisticLockingFailureException("Rows of " + tableName + " have been inserted concurrently", e);
+		}
+		boolean[] inserted = new boolean[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			inserted[i] = counts[i] == 1;
+		}
+		return inserted;
+	}
+
 	@Override
 	public void update(Object[] params, long version) {
 		final Object[] objectValues = params;
 		int rows = jdbc.update(jdbcUpdate, new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps) throws SQLException {
-				final boolean hasVersion = versionColumn != null;
-				int offset = 0;
-				int lastValue = objectValues.length - 1;
-
-				// Assign values 2..n to parameters 1..n-1
-				for (int parameterIndex = 1; parameterIndex <= lastValue; parameterIndex++) {
-					ps.setObject(parameterIndex, objectValues[parameterIndex - offset]);
-				}
-				// ID and VERSION are the final parameter(s)
-				ps.setObject(lastValue + 1, objectValues[0]);
-				if (hasVersion) {
-					ps.setObject(lastValue + 2, version);
-				}
+				setUpdateValues(ps, objectValues, version);
 			}
 		});
 		if (rows != 1) {
+			metrics.optimisticLockFailure(tableName);
 			throw new OptimisticLockingFailureException("Expected update to affect 1 row but was actually " + rows //
 					+ " (id: " + params[0] + ")");
 		}
 	}
 
+	@Override
+	public void update(List<Object[]> rows, long[] versions) {
+		int[] counts = executeCheckedBatch(jdbcUpdate, rows, (ps, row, rowIndex) -> setUpdateValues(ps, row, versions[rowIndex]));
+		checkUpdateCounts(counts, rows);
+	}
+
+	/**
+	 * Consecutive rows with the same modified columns are updated in JDBC batches of a statement that only sets the
+	 * version and the modified columns, which are built once for each combination of columns. Unmodified columns, in
+	 * particular the serialized data, are not written. Rows are updated in their given order, so the order in which row
+	 * locks are acquired is preserved.
+	 */
+	@Override
+	public void update(List<Object[]> rows, long[] versions, BitSet[] modified) {
+		int firstColumn = versionColumn == null ? 1 : 2;
+		BitSet[] shapes = new BitSet[rows.size()];
+		for (int i = 0; i < rows.size(); i++) {
+			// Bit n stands for otherColumns[n]
+			BitSet columns = modified[i].get(firstColumn, firstColumn + otherColumns.length);
+			if (columns.cardinality() == otherColumns.length || (columns.isEmpty() && versionColumn == null)) {
+				// All columns are updated by the regular statement
+				columns = null;
+			}
+			shapes[i] = columns;
+		}
+
+		int end;
+		for (int start = 0; start < rows.size(); start = end) {
+			BitSet columns = shapes[start];
+			end = start + 1;
+			while (end < rows.size() && Objects.equals(shapes[end], columns)) {
+				end++;
+			}
+			List<Object[]> shapeRows = rows.subList(start, end);
+			long[] shapeVersions = Arrays.copyOfRange(versions, start, end);
+
+			if (columns == null) {
+				update(shapeRows, shapeVersions);
+				continue;
+			}
+			String sql = partialUpdates.computeIfAbsent(columns, c -> {
+				String[] updated = new String[c.cardinality()];
+				int n = 0;
+				for (int column = c.nextSetBit(0); column >= 0; column = c.nextSetBit(column + 1)) {
+					updated[n++] = otherColumns[column];
+				}
+				return buildUpdateStatement(tableName, idColumn, versionColumn, updated);
+			});
+			int[] counts = executeCheckedBatch(sql, shapeRows, (ps, row, rowIndex) -> {
+				int parameterIndex = 1;
+				if (versionColumn != null) {
+					ps.setObject(parameterIndex++, row[1]);
+				}
+				for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+					ps.setObject(parameterIndex++, row[firstColumn + column]);
+				}
+				ps.setObject(parameterIndex++, row[0]);
+				if (versionColumn != null) {
+					ps.setObject(parameterIndex, shapeVersions[rowIndex]);
+				}
+			});
+			checkUpdateCounts(counts, shapeRows);
+		}
+	}
+
+	@Override
+	public void updateUnchecked(List<Object[]> rows) {
+		int[] counts = executeCheckedBatch(jdbcUncheckedUpdate, rows, (ps, row, rowIndex) -> {
+			for (int i = 1; i < row.length; i++) {
+				ps.setObject(i, row[i]);
+			}
+			ps.setObject(row.length, row[0]);
+		});
+		checkUpdateCounts(counts, rows);
+	}
+
+	private void checkUpdateCounts(int[] counts, List<Object[]> rows) {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 1) {
+				metrics.optimisticLockFailure(tableName);
+				throw new OptimisticLockingFailureException("Expected update to affect 1 row but was actually " + counts[i] //
+						+ " (id: " + rows.get(i)[0] + ")");
+			}
+		}
+	}
+
+	/**
+	 * Ids are deleted in chunks of at most {@link #getMaxInClauseSize()} ids, see {@link #chunk(Collection)}. All chunks
+	 * of the same size are executed as a single JDBC batch.
+	 */
 	@Override
 	public void delete(Set<String> ids) {
-		StringBuilder sql = new StringBuilder("DELETE FROM ").append(tableName).append(" WHERE ").append(idColumn);
-		sql.append(" in (").append(params(ids.size())).append(")");
+		Map<Integer, List<Object[]>> chunks = new LinkedHashMap<>();
+		for (Object[] chunk : chunk(ids)) {
+			chunks.computeIfAbsent(chunk.length, size -> new ArrayList<>()).add(chunk);
+		}
 
-		int count = jdbc.update(sql.toString(), ids.toArray());
+		int count = 0;
+		for (Map.Entry<Integer, List<Object[]>> chunk : chunks.entrySet()) {
+			String sql = deletes.computeIfAbsent(chunk.getKey(), size -> buildDeleteStatement(tableName, idColumn, size));
+			for (int rows : executeCheckedBatch(sql, chunk.getValue(), (ps, row, rowIndex) -> setIdValues(ps, row))) {
+				count += rows;
+			}
+		}
 		if (count != ids.size()) {
+			metrics.optimisticLockFailure(tableName);
 			String msg = String.format("Expected %d deletions but affected %d rows (%s)", ids.size(), count, ids);
 			throw new OptimisticLockingFailureException(msg);
 		}
@@ -92,12 +507,181 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		jdbc.execute("truncate table " + tableName);
 	}
 
+	/**
+	 * Execute a statement once for every row. Rows are sent to the database in JDBC batches that are limited to
+	 * {@link #getBatchSize()} rows and (approximately) {@link #getMaxBatchBytes()} bytes of parameter data.
+	 * 
+	 * @return the update count of each row, in the order of <code>rows</code>
+	 */
+	protected int[] executeBatch(String sql, List<Object[]> rows, RowSetter setter) {
+		int[] counts = new int[rows.size()];
+		int start = 0;
+		while (start < rows.size()) {
+			int end = start;
+			long bytes = 0;
+			while (end < rows.size() && end - start < batchSize) {
+				long rowBytes = estimateSize(rows.get(end));
+				if (end > start && bytes + rowBytes > maxBatchBytes) {
+					break;
+				}
+				bytes += rowBytes;
+				end++;
+			}
+
+			final int offset = start;
+			final List<Object[]> batch = rows.subList(start, end);
+			int[] result = jdbc.batchUpdate(sql, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setter.setValues(ps, batch.get(i), offset + i);
+				}
+
+				@Override
+				public int getBatchSize() {
+					return batch.size();
+				}
+			});
+			metrics.batchExecuted(tableName, result.length);
+			System.arraycopy(result, 0, counts, offset, result.length);
+			start = end;
+		}
+		return counts;
+	}
+
+	/**
+	 * Execute a statement whose update counts are checked, see {@link #executeBatch(String, List, RowSetter)}. If the
+	 * driver doesn't report the update counts of batched statements, see {@link #setBatchUpdateCounts(boolean)}, the
+	 * statements are executed one by one, so that optimistic locking still works.
+	 * 
+	 * @throws TransientDataAccessResourceException
+	 *             if the driver turns out not to report update counts. The statements of the batch can't be verified, so
+	 *             the transaction must be rolled back. It succeeds when it's retried, as the statements are executed one
+	 *             by one from then on.
+	 */
+	protected int[] executeCheckedBatch(String sql, List<Object[]> rows, RowSetter setter) {
+		if (!batchUpdateCounts) {
+			int[] counts = new int[rows.size()];
+			for (int i = 0; i < rows.size(); i++) {
+				Object[] row = rows.get(i);
+				int rowIndex = i;
+				counts[i] = jdbc.update(sql, ps -> setter.setValues(ps, row, rowIndex));
+				metrics.batchExecuted(tableName, 1);
+			}
+			return counts;
+		}
+
+		int[] counts = executeBatch(sql, rows, setter);
+		for (int count : counts) {
+			if (count == Statement.SUCCESS_NO_INFO) {
+				batchUpdateCounts = false;
+				throw new TransientDataAccessResourceException("JDBC driver does not report update counts for batched statements of "
+						+ tableName + ", statements are executed one by one from now on");
+			}
+		}
+		return counts;
+	}
+
+	protected void setInsertValues(PreparedStatement ps, Object[] objectValues) throws SQLException {
+		for (int i = 0; i < objectValues.length; i++) {
+			ps.setObject(i + 1, objectValues[i]);
+		}
+	}
+
+	/**
+	 * Bind the values of a row to the statement of {@link #buildInsertIfAbsentStatement(String, String, String, String...)}.
+	 */
+	protected void setInsertIfAbsentValues(PreparedStatement ps, Object[] objectValues) throws SQLException {
+		setInsertValues(ps, objectValues);
+	}
+
+	/**
+	 * Bind the ids of a chunk, see {@link #chunk(Collection)}, to the parameters of an <code>IN (...)</code> clause.
+	 */
+	protected void setIdValues(PreparedStatement ps, Object[] ids) throws SQLException {
+		for (int i = 0; i < ids.length; i++) {
+			ps.setObject(i + 1, ids[i]);
+		}
+	}
+
+	protected void setUpdateValues(PreparedStatement ps, Object[] objectValues, long version) throws SQLException {
+		final boolean hasVersion = versionColumn != null;
+		int lastValue = objectValues.length - 1;
+
+		// Assign values 2..n to parameters 1..n-1
+		for (int parameterIndex = 1; parameterIndex <= lastValue; parameterIndex++) {
+			ps.setObject(parameterIndex, objectValues[parameterIndex]);
+		}
+		// ID and VERSION are the final parameter(s)
+		ps.setObject(lastValue + 1, objectValues[0]);
+		if (hasVersion) {
+			ps.setObject(lastValue + 2, version);
+		}
+	}
+
+	/**
+	 * Approximate number of bytes a row contributes to a batch. Only used to bound the size of a single batch.
+	 */
+	protected long estimateSize(Object[] row) {
+		long size = 0;
+		for (Object value : row) {
+			if (value instanceof byte[]) {
+				size += ((byte[]) value).length;
+			} else if (value instanceof CharSequence) {
+				size += 2 * ((CharSequence) value).length();
+			} else {
+				size += 8;
+			}
+		}
+		return size;
+	}
+
 	protected String buildInsertStatement(String tableName, String idColumn, String versionColumn, String... otherColumns) {
 		return String.format("INSERT INTO %s (%s) values (%s)", tableName, //
-				columns(idColumn, versionColumn, otherColumns), params(versionColumn == null ? 1 : 2 + otherColumns.length));
+				columns(idColumn, versionColumn, otherColumns), params(columnCount(versionColumn, otherColumns)));
+	}
+
+	protected String buildMultiRowInsertStatement(int rows, String tableName, String idColumn, String versionColumn,
+			String... otherColumns) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName);
+		sql.append(" (").append(columns(idColumn, versionColumn, otherColumns)).append(") values ");
+
+		String values = "(" + params(columnCount(versionColumn, otherColumns)) + ")";
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(values);
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * The statement of {@link #insertIfAbsent(List)}, which inserts a new row unless a row with the same id already
+	 * exists. Rows that already exist are updated through the regular, version checked UPDATE statement.
+	 * <p>
+	 * The default implementation is the plain INSERT statement; a row that already exists fails the batch with a
+	 * duplicate key, which is reported as an optimistic locking failure. Override it together with
+	 * {@link #setInsertIfAbsentValues(PreparedStatement, Object[])}, e.g. with a <code>MERGE</code> that only inserts
+	 * missing rows, to report the rows that exist through their update counts instead.
+	 */
+	protected String buildInsertIfAbsentStatement(String tableName, String idColumn, String versionColumn, String... otherColumns) {
+		return buildInsertStatement(tableName, idColumn, versionColumn, otherColumns);
 	}
 
 	protected String buildUpdateStatement(String tableName, String idColumn, String versionColumn, String... otherColumns) {
+		return updateStatement(tableName, idColumn, versionColumn, otherColumns, true);
+	}
+
+	/**
+	 * An UPDATE statement like {@link #buildUpdateStatement(String, String, String, String...)}, but without the version
+	 * condition.
+	 */
+	protected String buildUncheckedUpdateStatement(String tableName, String idColumn, String versionColumn, String... otherColumns) {
+		return updateStatement(tableName, idColumn, versionColumn, otherColumns, false);
+	}
+
+	private static String updateStatement(String tableName, String idColumn, String versionColumn, String[] otherColumns,
+			boolean checkVersion) {
 		StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
 
 		boolean first = true;
@@ -116,17 +700,35 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		}
 		sql.append(" WHERE ").append(idColumn).append("=?");
 
-		if (versionColumn != null) {
+		if (versionColumn != null && checkVersion) {
 			sql.append(" AND ").append(versionColumn).append("=?");
 		}
 
 		return sql.toString();
 	}
 
+	protected String buildDeleteStatement(String tableName, String idColumn, int count) {
+		return String.format("DELETE FROM %s WHERE %s IN (%s)", tableName, idColumn, params(count));
+	}
+
 	protected String buildSelectStatement(String tableName, String idColumn, String versionColumn, String... otherColumns) {
 		return String.format("SELECT %s FROM %s WHERE %s = ?", columns(idColumn, versionColumn, otherColumns), tableName, idColumn);
 	}
 
+	protected String buildSelectIdsStatement(String tableName, String idColumn) {
+		return String.format("SELECT %s FROM %s", idColumn, tableName);
+	}
+
+	protected String buildSelectWhereStatement(String tableName, String column, String idColumn, String versionColumn,
+			String... otherColumns) {
+		return String.format("SELECT %s FROM %s WHERE %s = ?", columns(idColumn, versionColumn, otherColumns), tableName, column);
+	}
+
+	protected String buildFinderStatement(String tableName, String condition, String idColumn, String versionColumn,
+			String... otherColumns) {
+		return String.format("SELECT %s FROM %s WHERE %s", columns(idColumn, versionColumn, otherColumns), tableName, condition);
+	}
+
 	protected static String columns(String idColumn, String versionColumn, String[] otherColumns) {
 		StringBuilder sb = new StringBuilder(idColumn);
 		if (versionColumn != null) {
@@ -139,6 +741,53 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		return sb.toString();
 	}
 
+	protected static int columnCount(String versionColumn, String[] otherColumns) {
+		return (versionColumn == null ? 1 : 2) + otherColumns.length;
+	}
+
+	private static Object[] concat(List<Object[]> rows) {
+		int length = 0;
+		for (Object[] row : rows) {
+			length += row.length;
+		}
+		Object[] result = new Object[length];
+		int offset = 0;
+		for (Object[] row : rows) {
+			System.arraycopy(row, 0, result, offset, row.length);
+			offset += row.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Map the current row of a result set to an entity. Delegates to the row mapper of the adapter; subclasses may
+	 * override it to read the serialized data with {@link #readSerializedData(ResultSet, String, ViewEntity)}.
+	 */
+	protected E mapRow(ResultSet rs, int rowNum) throws SQLException {
+		return rowMapper.mapRow(rs, rowNum);
+	}
+
+	/**
+	 * Read the serialized data of the current row into an entity. If the adapter has a buffer pool, the data is streamed
+	 * into a pooled buffer instead of a byte array on the heap. The view manager releases the buffer when the transaction
+	 * of the entity's session completes.
+	 */
+	protected void readSerializedData(ResultSet rs, String column, ViewEntity<?> entity) throws SQLException {
+		if (bufferPool == null) {
+			entity.setSerializedData(rs.getBytes(column));
+			return;
+		}
+		try (InputStream in = rs.getBinaryStream(column)) {
+			if (in == null) {
+				entity.setSerializedData(null);
+			} else {
+				entity.setSerializedBuffer(bufferPool.read(in));
+			}
+		} catch (IOException e) {
+			throw new SQLException("Can't read " + column + " of " + tableName, e);
+		}
+	}
+
 	protected static String params(int count) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < count; i++) {
@@ -154,4 +803,102 @@ public class JdbcPersistenceAdapter<E> implements PersistenceAdapter<E> {
 		return jdbc;
 	}
 
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Maximum number of rows sent to the database in a single JDBC batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public int getMultiRowInsertSize() {
+		return multiRowInsertSize;
+	}
+
+	/**
+	 * Number of rows combined into a single <code>INSERT ... VALUES (...), (...)</code> statement. The default of 1
+	 * disables multi-row inserts, which are not supported by every database.
+	 */
+	public void setMultiRowInsertSize(int multiRowInsertSize) {
+		Assert.isTrue(multiRowInsertSize > 0, "multiRowInsertSize must be positive");
+		this.multiRowInsertSize = multiRowInsertSize;
+		this.jdbcMultiRowInsert = buildMultiRowInsertStatement(multiRowInsertSize, tableName, idColumn, versionColumn, otherColumns);
+	}
+
+	public int getMaxInClauseSize() {
+		return maxInClauseSize;
+	}
+
+	/**
+	 * Maximum number of values bound to a single <code>IN (...)</code> clause.
+	 */
+	public void setMaxInClauseSize(int maxInClauseSize) {
+		Assert.isTrue(maxInClauseSize > 0, "maxInClauseSize must be positive");
+		this.maxInClauseSize = maxInClauseSize;
+	}
+
+	public ViewManagerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(ViewManagerMetrics metrics) {
+		Assert.notNull(metrics, "metrics must not be null");
+		this.metrics = metrics;
+	}
+
+	public ViewBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Read the serialized data of loaded rows into the buffers of a pool, see
+	 * {@link #readSerializedData(ResultSet, String, ViewEntity)}. Usually the pool of the view manager's
+	 * {@link ViewCache}, whose entries then share the buffers of the loaded rows.
+	 */
+	public void setBufferPool(ViewBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Number of rows fetched from the database at a time by {@link #stream(String, Object...)} and
+	 * {@link #query(String, Consumer, Object...)}.
+	 */
+	public void setFetchSize(int fetchSize) {
+		Assert.isTrue(fetchSize > 0, "fetchSize must be positive");
+		this.fetchSize = fetchSize;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Maximum (estimated) payload of a single JDBC batch. A batch always contains at least one row.
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		Assert.isTrue(maxBatchBytes > 0, "maxBatchBytes must be positive");
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public boolean isBatchUpdateCounts() {
+		return batchUpdateCounts;
+	}
+
+	/**
+	 * Whether the JDBC driver reports the update counts of batched statements. Statements whose update counts are
+	 * checked (updates, deletions and conditional inserts) are executed one by one if it doesn't. By default, this is
+	 * detected when a batch returns {@link Statement#SUCCESS_NO_INFO}, which fails the transaction of that batch.
+	 */
+	public void setBatchUpdateCounts(boolean batchUpdateCounts) {
+		this.batchUpdateCounts = batchUpdateCounts;
+	}
+
 }
@@ -1,15 +1,87 @@
 package io.phaas.viewmanager;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface PersistenceAdapter<E> {
 
+	String getTableName();
+
 	E select(String id);
 
+	/**
+	 * Select all existing rows with one of the given ids.
+	 */
+	List<E> select(Collection<String> ids);
+
+	/**
+	 * Select all rows whose columns are equal to the values at the same index.
+	 */
+	List<E> findBy(String[] columns, Object[] values);
+
+	/**
+	 * Select all rows where <code>column</code> matches one of the values. A null value matches NULL columns.
+	 */
+	List<E> findByIn(String column, Collection<?> values);
+
+	/**
+	 * @return the index of a column in the values of a row, e.g. the values passed to {@link #insert(Object[])}
+	 * @throws IllegalArgumentException
+	 *             if the adapter doesn't have the column
+	 */
+	int getColumnIndex(String column);
+
+	/**
+	 * @return the index of the version in the values of a row, or -1 if rows don't have a version
+	 */
+	int getVersionIndex();
+
+	/**
+	 * Pass the id of every row to the callback, without holding all ids in memory.
+	 */
+	void forEachId(Consumer<String> callback);
+
 	void insert(Object[] params);
 
 	void update(Object[] params, long version);
 
+	/**
+	 * Insert multiple rows, using as few round trips as possible.
+	 */
+	void insert(List<Object[]> rows);
+
+	/**
+	 * Insert multiple rows, skipping rows whose id already exists.
+	 * 
+	 * @return for each row, whether it has been inserted
+	 * @throws org.springframework.dao.OptimisticLockingFailureException
+	 *             if a row has been inserted by another transaction while the rows were being inserted
+	 */
+	boolean[] insertIfAbsent(List<Object[]> rows);
+
+	/**
+	 * Update multiple rows, using as few round trips as possible. Every row must match the expected version found at
+	 * the same index of <code>versions</code>.
+	 */
+	void update(List<Object[]> rows, long[] versions);
+
+	/**
+	 * Update the modified columns of multiple rows. The version is always updated, other values are only written if
+	 * their index is set in the bit set found at the same index of <code>modified</code>. Adapters that can't update
+	 * individual columns update all of them.
+	 */
+	default void update(List<Object[]> rows, long[] versions, BitSet[] modified) {
+		update(rows, versions);
+	}
+
+	/**
+	 * Update multiple rows regardless of their current version.
+	 */
+	void updateUnchecked(List<Object[]> rows);
+
 	void delete(Set<String> ids);
 
 	void deleteAll();
@@ -0,0 +1,62 @@
+package io.phaas.viewmanager;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serialized data held in a buffer of a {@link ViewBufferPool}. The buffer is shared by the cache entry and the
+ * entities restored from it, each of which holds a reference. It returns to the pool when the last reference has been
+ * released, and can't be retained after that.
+ *
+ * @author Patrick Haas
+ */
+final class PooledBuffer {
+
+	private final ViewBufferPool pool;
+	/** Positioned at the start of the data, which is never modified */
+	private final ByteBuffer buffer;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	PooledBuffer(ViewBufferPool pool, ByteBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @return false if the buffer has already been returned to the pool
+	 */
+	boolean retain() {
+		while (true) {
+			int count = references.get();
+			if (count == 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * @return a read-only view of the data, which must not be used after the reference has been released
+	 */
+	ByteBuffer data() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	int size() {
+		return buffer.limit();
+	}
+
+	byte[] toByteArray() {
+		byte[] data = new byte[size()];
+		data().get(data);
+		return data;
+	}
+}
@@ -0,0 +1,380 @@
+package io.phaas.viewmanager;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Projects work into a view on several threads. Work is submitted for the id of the entity it changes and assigned to
+ * a shard by the hash of the id. Each shard has a thread of its own, which executes the work of its ids in the order of
+ * submission. Since every id belongs to a single shard, shards never compete for the same entities, and optimistic
+ * locking failures are limited to writers outside of the executor.
+ * <p>
+ * A shard executes up to {@link #getBatchSize()} queued tasks in a single transaction, and therefore a single
+ * {@link ViewManagerSession}, so their changes are written in batches. If the transaction fails, the tasks of the batch
+ * are retried in a transaction of their own. A task that still fails is passed to the {@link FailureHandler}, which logs
+ * it by default, and stops its id: later work of the id is passed to the handler as well, instead of being executed on
+ * top of a missing change, until the id is {@link #resume(Object) resumed}. Tasks must not depend on changes of other
+ * tasks having been committed.
+ * <p>
+ * Committed batches are reported to the {@link ViewManagerMetrics} of the view manager, together with their lag.
+ * Submitting work blocks while the queue of its shard is full. The executor must be closed when the application shuts
+ * down, which executes all remaining work.
+ *
+ * @author Patrick Haas
+ */
+public class ProjectionExecutor<E extends ViewEntity<?>, I> implements Closeable {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private static final Log log = LogFactory.getLog(ProjectionExecutor.class);
+
+	/**
+	 * Receives the work that could not be executed. Called by the thread of the shard of the id.
+	 */
+	public interface FailureHandler<I> {
+		/**
+		 * @param cause
+		 *            the failure of the work, or of earlier work of the id, which has stopped the id
+		 */
+		void failed(I id, Runnable work, Throwable cause);
+	}
+
+	private static final class Task {
+		final Object id;
+		final Runnable work;
+		/** The time the task has been submitted, see {@link System#nanoTime()} */
+		final long submitted;
+
+		Task(Object id, Runnable work) {
+			this.id = id;
+			this.work = work;
+			this.submitted = System.nanoTime();
+		}
+	}
+
+	/** Stops a shard once all preceding tasks have been executed */
+	private static final Task STOP = new Task(null, null);
+
+	private final AbstractViewManager<E, I, ?> vm;
+	private final String view;
+	private final TransactionTemplate transactionTemplate;
+	private final List<BlockingQueue<Task>> queues;
+	private final List<Thread> shards;
+	/** The failures of the ids that have been stopped */
+	private final Map<Object, Throwable> stopped = new ConcurrentHashMap<>();
+	/** Held by submit() while it queues work, and by close() while it stops accepting work */
+	private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition idle = lock.newCondition();
+	/** Submitted tasks that have not been executed yet */
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile FailureHandler<I> failureHandler;
+	private volatile boolean closed;
+
+	/**
+	 * @param vm
+	 *            the view manager of the projected view
+	 * @param transactionManager
+	 *            the transaction manager used to execute batches
+	 * @param shards
+	 *            the number of shards (and threads)
+	 * @param capacity
+	 *            the maximum number of queued tasks of each shard
+	 */
+	public ProjectionExecutor(AbstractViewManager<E, I, ?> vm, PlatformTransactionManager transactionManager, int shards, int capacity) {
+		Assert.isTrue(shards > 0, "Number of shards must be positive");
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		this.vm = vm;
+		this.view = vm.getPersistence().getTableName();
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.failureHandler = (id, work, cause) -> log.error("Could not project " + id + " into " + view, cause);
+
+		this.queues = new ArrayList<>(shards);
+		this.shards = new ArrayList<>(shards);
+		for (int i = 0; i < shards; i++) {
+			BlockingQueue<Task> queue = new LinkedBlockingQueue<>(capacity);
+			Thread shard = new Thread(() -> run(queue), "projection-" + view + "-" + i);
+			shard.setDaemon(true);
+			queues.add(queue);
+			this.shards.add(shard);
+		}
+		this.shards.forEach(Thread::start);
+	}
+
+	/**
+	 * Execute work that changes the entity with the given id, after all work that has been submitted for the id before.
+	 * The work runs in a transaction of its shard and may use any view manager.
+	 */
+	public void submit(I id, Runnable work) {
+		BlockingQueue<Task> queue = queues.get(Math.floorMod(id.hashCode(), queues.size()));
+		Task task = new Task(id, work);
+		pending.incrementAndGet();
+		try {
+			// The lock is released while the queue is full, so that close() isn't blocked by a full shard
+			while (true) {
+				submitLock.readLock().lock();
+				try {
+					if (closed) {
+						throw new IllegalStateException("Projection executor of " + view + " has been closed");
+					}
+					if (queue.offer(task, 10, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				} finally {
+					submitLock.readLock().unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			done(1);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while submitting work for " + id, e);
+		} catch (RuntimeException e) {
+			done(1);
+			throw e;
+		}
+	}
+
+	/**
+	 * @see ViewManager#createOrUpdate(Object, Consumer)
+	 */
+	public void createOrUpdate(I id, Consumer<E> updater) {
+		submit(id, () -> vm.createOrUpdate(id, updater));
+	}
+
+	/**
+	 * @see ViewManager#remove(Object)
+	 */
+	public void remove(I id) {
+		submit(id, () -> vm.remove(id));
+	}
+
+	/**
+	 * Wait until all submitted work has been executed.
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			while (pending.get() > 0) {
+				idle.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting work, execute all queued work and stop the shards.
+	 */
+	@Override
+	public void close() {
+		// Work that is queued after STOP would never be executed
+		submitLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			submitLock.writeLock().unlock();
+		}
+		try {
+			for (BlockingQueue<Task> queue : queues) {
+				queue.put(STOP);
+			}
+			for (Thread shard : shards) {
+				shard.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Execute the work of an id that has been stopped by a failure again. Work of the id that has been discarded in the
+	 * meantime is not executed.
+	 */
+	public void resume(I id) {
+		stopped.remove(id);
+	}
+
+	/**
+	 * @return whether work of the id is discarded, because earlier work of the id has failed
+	 */
+	public boolean isStopped(I id) {
+		return stopped.containsKey(id);
+	}
+
+	/**
+	 * @return the number of tasks that have been submitted but not executed yet
+	 */
+	public long getBacklog() {
+		return pending.get();
+	}
+
+	/**
+	 * @return the time (in milliseconds) the oldest queued task has been waiting, or 0 if no task is queued
+	 */
+	public long getLag() {
+		long now = System.nanoTime();
+		long lag = 0;
+		for (BlockingQueue<Task> queue : queues) {
+			Task oldest = queue.peek();
+			if (oldest != null && oldest != STOP) {
+				lag = Math.max(lag, now - oldest.submitted);
+			}
+		}
+		return TimeUnit.NANOSECONDS.toMillis(lag);
+	}
+
+	public long getCompletedTasks() {
+		return completed.get();
+	}
+
+	public long getFailedTasks() {
+		return failed.get();
+	}
+
+	public FailureHandler<I> getFailureHandler() {
+		return failureHandler;
+	}
+
+	/**
+	 * Handle the work that could not be executed, e.g. to schedule a rebuild of the id. By default, it's logged.
+	 */
+	public void setFailureHandler(FailureHandler<I> failureHandler) {
+		Assert.notNull(failureHandler, "Failure handler must not be null");
+		this.failureHandler = failureHandler;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * The maximum number of tasks a shard executes in a single transaction.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	private void run(BlockingQueue<Task> queue) {
+		List<Task> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				// Execute all remaining work before the thread terminates
+				closed = true;
+				queue.drainTo(batch);
+				batch.remove(STOP);
+				if (!batch.isEmpty()) {
+					execute(batch);
+				}
+				return;
+			}
+			queue.drainTo(batch, batchSize - 1);
+
+			// STOP is always the last task of a queue
+			boolean stop = batch.get(batch.size() - 1) == STOP;
+			if (stop) {
+				batch.remove(batch.size() - 1);
+			}
+			if (!batch.isEmpty()) {
+				execute(batch);
+			}
+			batch.clear();
+			if (stop) {
+				return;
+			}
+		}
+	}
+
+	private void execute(List<Task> batch) {
+		List<Task> tasks = new ArrayList<>(batch.size());
+		for (Task task : batch) {
+			if (stopped.containsKey(task.id)) {
+				failed(task, stopped.get(task.id));
+			} else {
+				tasks.add(task);
+			}
+		}
+		if (!tasks.isEmpty()) {
+			executeAll(tasks);
+		}
+	}
+
+	private void executeAll(List<Task> batch) {
+		long start = System.nanoTime();
+		try {
+			transactionTemplate.execute(status -> {
+				batch.forEach(task -> task.work.run());
+				return null;
+			});
+		} catch (Throwable e) {
+			// Errors of a task must not terminate the shard either
+			if (batch.size() > 1) {
+				// A single failing task must not discard the work of the whole batch
+				for (Task task : batch) {
+					execute(Collections.singletonList(task));
+				}
+			} else {
+				stopped.put(batch.get(0).id, e);
+				failed(batch.get(0), e);
+			}
+			return;
+		}
+
+		long end = System.nanoTime();
+		completed.addAndGet(batch.size());
+		try {
+			vm.getMetrics().projected(view, batch.size(), end - batch.get(0).submitted, end - start);
+		} catch (RuntimeException e) {
+			log.warn("Could not report projected batch of " + view, e);
+		}
+		done(batch.size());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void failed(Task task, Throwable cause) {
+		failed.incrementAndGet();
+		try {
+			failureHandler.failed((I) task.id, task.work, cause);
+		} catch (RuntimeException e) {
+			log.error("Failure handler of " + view + " failed", e);
+		}
+		done(1);
+	}
+
+	private void done(int tasks) {
+		if (pending.addAndGet(-tasks) == 0) {
+			lock.lock();
+			try {
+				idle.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
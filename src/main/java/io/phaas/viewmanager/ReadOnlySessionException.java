@@ -0,0 +1,17 @@
+package io.phaas.viewmanager;
+
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+
+/**
+ * Thrown when an entity is persisted, removed or modified in a read-only transaction.
+ *
+ * @author Patrick Haas
+ */
+@SuppressWarnings("serial")
+public class ReadOnlySessionException extends InvalidDataAccessApiUsageException {
+
+	public ReadOnlySessionException(String msg) {
+		super(msg);
+	}
+
+}
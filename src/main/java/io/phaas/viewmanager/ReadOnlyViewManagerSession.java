@@ -0,0 +1,73 @@
+package io.phaas.viewmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The session of a view manager in a read-only transaction. Loaded entities are only kept in the identity map of the
+ * session: they are neither snapshotted nor indexed, and the maps that track changes are not allocated. Any attempt to
+ * add, remove or modify an entity fails immediately.
+ *
+ * @author Patrick Haas
+ */
+class ReadOnlyViewManagerSession<E extends ViewEntity<?>> extends ViewManagerSession<E> {
+
+	/**
+	 * @param concurrent
+	 *            whether the session may be used by several threads, see
+	 *            {@link AbstractViewManager#setConcurrentSessions(boolean)}
+	 */
+	ReadOnlyViewManagerSession(AbstractViewManager<E, ?, ?> vm, boolean concurrent) {
+		super(vm, concurrent, true);
+	}
+
+	@Override
+	public E addLoadedObject(E entity, long version) {
+		E attached = putLoaded(entity);
+		return attached != null ? attached : entity;
+	}
+
+	/**
+	 * @return no entities, as attached entities are unchanged and are found in the database as well
+	 */
+	@Override
+	public List<E> find(String indexName, Collection<?> values) {
+		return new ArrayList<>();
+	}
+
+	@Override
+	boolean isModifiable() {
+		return false;
+	}
+
+	@Override
+	public void add(E entity) {
+		throw new ReadOnlySessionException("Cannot persist item " + entity.getId() + " in a read-only transaction");
+	}
+
+	@Override
+	public void addRemovedObject(String id) {
+		throw new ReadOnlySessionException("Cannot remove item " + id + " in a read-only transaction");
+	}
+
+	@Override
+	public void addUpsert(String id, Consumer<E> updater) {
+		throw new ReadOnlySessionException("Cannot update item " + id + " in a read-only transaction");
+	}
+
+	@Override
+	void modified(ViewEntity<?> entity, boolean reported) {
+		throw new ReadOnlySessionException("Cannot modify item " + entity.getId() + " in a read-only transaction");
+	}
+
+	@Override
+	public void commit() {
+	}
+
+	@Override
+	public void afterCompletion(int status) {
+		releaseBuffers();
+	}
+}
@@ -0,0 +1,73 @@
+package io.phaas.viewmanager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A hash index of the entities attached to a session, by the value of a single attribute. Concurrent indexes may be
+ * updated by several threads, as long as each entity is only indexed by one thread at a time.
+ *
+ * @author Patrick Haas
+ */
+class SessionIndex<E extends ViewEntity<?>> {
+
+	/** Stands for null attribute values, which concurrent maps don't accept */
+	private static final Object NULL = new Object();
+
+	private final Function<E, ?> attribute;
+	private final boolean concurrent;
+	private final Map<Object, Map<String, E>> entities;
+	/** The indexed value of each entity, by id */
+	private final Map<String, Object> values;
+
+	SessionIndex(Function<E, ?> attribute, boolean concurrent) {
+		this.attribute = attribute;
+		this.concurrent = concurrent;
+		this.entities = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.values = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+	}
+
+	void add(E entity) {
+		String id = entity.getId();
+		Object value = key(attribute.apply(entity));
+		values.put(id, value);
+		entities.compute(value, (v, matches) -> {
+			if (matches == null) {
+				matches = concurrent ? new ConcurrentHashMap<>(4) : new HashMap<>(4);
+			}
+			matches.put(id, entity);
+			return matches;
+		});
+	}
+
+	void remove(String id) {
+		Object value = values.remove(id);
+		if (value == null) {
+			return;
+		}
+		entities.computeIfPresent(value, (v, matches) -> {
+			matches.remove(id);
+			return matches.isEmpty() ? null : matches;
+		});
+	}
+
+	/**
+	 * Re-index an entity whose attribute may have changed.
+	 */
+	void update(E entity) {
+		remove(entity.getId());
+		add(entity);
+	}
+
+	Map<String, E> get(Object value) {
+		Map<String, E> matches = entities.get(key(value));
+		return matches == null ? Collections.emptyMap() : matches;
+	}
+
+	private static Object key(Object value) {
+		return value == null ? NULL : value;
+	}
+}
@@ -0,0 +1,131 @@
+package io.phaas.viewmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * A pool of direct buffers that hold serialized data off-heap, see {@link ViewCache#ViewCache(long, ViewBufferPool)}.
+ * Buffers are allocated in power-of-two size classes, so a released buffer can be reused for any data of its class.
+ * The pool keeps released buffers up to a maximum number of bytes; buffers beyond that are left to the garbage
+ * collector, which frees their memory.
+ * <p>
+ * Direct memory is limited by <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap size.
+ *
+ * @author Patrick Haas
+ */
+public class ViewBufferPool {
+
+	/** The smallest size class; smaller buffers are not worth pooling separately */
+	private static final int MIN_SIZE_CLASS = 12;
+	private static final int MAX_SIZE_CLASS = 30;
+
+	/** Released buffers, by size class */
+	private final List<Queue<ByteBuffer>> released = new ArrayList<>(MAX_SIZE_CLASS + 1);
+	private final long maximumPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * @param maximumPooledBytes
+	 *            the maximum number of bytes held by released buffers
+	 */
+	public ViewBufferPool(long maximumPooledBytes) {
+		Assert.isTrue(maximumPooledBytes >= 0, "Maximum pooled bytes must not be negative");
+		this.maximumPooledBytes = maximumPooledBytes;
+		for (int i = 0; i <= MAX_SIZE_CLASS; i++) {
+			released.add(i < MIN_SIZE_CLASS ? null : new ConcurrentLinkedQueue<>());
+		}
+	}
+
+	/**
+	 * @return the number of bytes held by released buffers, which are available for reuse
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes of all buffers the pool has allocated
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Copy data into a buffer of the pool.
+	 */
+	PooledBuffer copyOf(byte[] data) {
+		ByteBuffer buffer = acquire(data.length);
+		buffer.put(data);
+		buffer.flip();
+		return new PooledBuffer(this, buffer);
+	}
+
+	/**
+	 * Read a stream into a buffer of the pool, without copying it to the heap first. The buffer is moved to the next
+	 * size class whenever it's full.
+	 */
+	PooledBuffer read(InputStream in) throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer buffer = acquire(1 << MIN_SIZE_CLASS);
+		try {
+			while (channel.read(buffer) >= 0) {
+				if (!buffer.hasRemaining()) {
+					Assert.isTrue(buffer.capacity() < 1 << MAX_SIZE_CLASS, "Data is too large for a pooled buffer");
+					ByteBuffer larger = acquire(buffer.capacity() * 2);
+					buffer.flip();
+					larger.put(buffer);
+					release(buffer);
+					buffer = larger;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			release(buffer);
+			throw e;
+		}
+		buffer.flip();
+		return new PooledBuffer(this, buffer);
+	}
+
+	/**
+	 * @return a buffer with a limit of <code>size</code> bytes
+	 */
+	private ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		ByteBuffer buffer = released.get(sizeClass).poll();
+		if (buffer == null) {
+			allocatedBytes.addAndGet(1L << sizeClass);
+			buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+		} else {
+			pooledBytes.addAndGet(-buffer.capacity());
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (pooledBytes.addAndGet(capacity) <= maximumPooledBytes) {
+			released.get(sizeClass(capacity)).offer(buffer);
+		} else {
+			pooledBytes.addAndGet(-capacity);
+			allocatedBytes.addAndGet(-capacity);
+		}
+	}
+
+	private static int sizeClass(int size) {
+		Assert.isTrue(size <= 1 << MAX_SIZE_CLASS, "Data of " + size + " bytes is too large for a pooled buffer");
+		return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+	}
+}
@@ -0,0 +1,167 @@
+package io.phaas.viewmanager;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A second-level cache of view rows that is shared by all transactions. Entries are the values produced by
+ * {@link AbstractViewManager#getObjectValues(ViewEntity)}, i.e. the id, the version, the serialized data and all
+ * attribute columns of a view. The cache is bounded by the approximate number of bytes held by its entries; the least
+ * recently used entries are evicted first.
+ * <p>
+ * Entries share the serialized data with the entities they have been produced from and restored to. Byte arrays of
+ * serialized data are treated as immutable: they must not be modified once an entity has been written or loaded.
+ * <p>
+ * The cache only sees the changes made through its view manager(s). It must not be used for tables that are modified
+ * by other processes, although stale entries are detected (and evicted) when an update fails the optimistic lock.
+ * <p>
+ * The serialized data of the entries may be kept off-heap, in the buffers of a {@link ViewBufferPool}. Entities that
+ * are restored from such entries read their data from the buffer of the entry, without copying it to the heap, until
+ * the transaction of their session completes. A buffer returns to the pool once its entry has been evicted and all
+ * sessions that read it have completed.
+ *
+ * @author Patrick Haas
+ */
+public class ViewCache {
+
+	/** The index of the version in the values of an entry */
+	static final int VERSION = 1;
+	/** The index of the serialized data in the values of an entry */
+	static final int SERIALIZED_DATA = 2;
+
+	private final Cache<String, Object[]> cache;
+	private final ViewBufferPool pool;
+
+	public ViewCache(long maximumBytes) {
+		this(maximumBytes, null);
+	}
+
+	/**
+	 * @param pool
+	 *            the pool of the buffers that hold the serialized data of the entries, or null to keep it on the heap
+	 */
+	public ViewCache(long maximumBytes, ViewBufferPool pool) {
+		this.pool = pool;
+		CacheBuilder<String, Object[]> builder = CacheBuilder.newBuilder() //
+				.maximumWeight(maximumBytes) //
+				.weigher((String id, Object[] values) -> weigh(values));
+		if (pool != null) {
+			builder.removalListener((RemovalNotification<String, Object[]> removed) -> release(removed.getValue()));
+		}
+		this.cache = builder.build();
+	}
+
+	/**
+	 * If the serialized data is kept off-heap, it's returned as a reference to the buffer of the entry, which is
+	 * released by the session that restores the entity. Otherwise the byte array of the entry is returned without
+	 * copying it, as serialized data is never modified in place.
+	 * 
+	 * @return a copy of the cached values of this view, or null
+	 */
+	public Object[] get(String id) {
+		Object[] values = cache.getIfPresent(id);
+		if (values == null) {
+			return null;
+		}
+		Object data = values[SERIALIZED_DATA];
+		if (data instanceof PooledBuffer && !((PooledBuffer) data).retain()) {
+			// Evicted (and released) since it has been looked up
+			return null;
+		}
+		return values.clone();
+	}
+
+	/**
+	 * Cache the values of a row, unless the cache holds a newer version of the row. A reader that has selected a row
+	 * before a concurrent transaction committed a newer version must not replace the newer entry.
+	 */
+	public void put(Object[] values) {
+		Object[] entry = values.clone();
+		Object data = entry[SERIALIZED_DATA];
+		if (data != null && !(data instanceof byte[]) && !(data instanceof PooledBuffer)) {
+			throw new IllegalArgumentException("Expected serialized data at index " + SERIALIZED_DATA + " of the values of " + entry[0]);
+		}
+		if (pool != null && entry[SERIALIZED_DATA] instanceof byte[]) {
+			entry[SERIALIZED_DATA] = pool.copyOf((byte[]) entry[SERIALIZED_DATA]);
+		}
+		String id = entry[0].toString();
+		ConcurrentMap<String, Object[]> entries = cache.asMap();
+		while (true) {
+			Object[] cached = entries.putIfAbsent(id, entry);
+			if (cached == null) {
+				return;
+			}
+			if (!isNewer(entry, cached)) {
+				release(entry);
+				return;
+			}
+			// Replacing an entry releases its buffer, so the cached entry is only replaced by a newer one
+			if (entries.replace(id, cached, entry)) {
+				return;
+			}
+		}
+	}
+
+	public void putAll(Collection<Object[]> rows) {
+		for (Object[] values : rows) {
+			put(values);
+		}
+	}
+
+	public void invalidate(String id) {
+		cache.invalidate(id);
+	}
+
+	public void invalidateAll(Collection<String> ids) {
+		cache.invalidateAll(ids);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public ViewBufferPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return whether the values are a newer version of the row than the cached values. Rows without a version are
+	 *         always replaced.
+	 */
+	private static boolean isNewer(Object[] values, Object[] cached) {
+		Object version = values[VERSION];
+		Object cachedVersion = cached[VERSION];
+		if (!(version instanceof Number) || !(cachedVersion instanceof Number)) {
+			return true;
+		}
+		return ((Number) version).longValue() > ((Number) cachedVersion).longValue();
+	}
+
+	private static void release(Object[] values) {
+		if (values != null && values[SERIALIZED_DATA] instanceof PooledBuffer) {
+			((PooledBuffer) values[SERIALIZED_DATA]).release();
+		}
+	}
+
+	private static int weigh(Object[] values) {
+		int weight = 16 + 8 * values.length;
+		for (Object value : values) {
+			if (value instanceof byte[]) {
+				weight += ((byte[]) value).length;
+			} else if (value instanceof PooledBuffer) {
+				weight += ((PooledBuffer) value).size();
+			} else if (value instanceof CharSequence) {
+				weight += 2 * ((CharSequence) value).length();
+			}
+		}
+		return weight;
+	}
+}
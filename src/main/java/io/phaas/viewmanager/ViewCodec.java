@@ -0,0 +1,38 @@
+package io.phaas.viewmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Converts the objects of a view type to and from the serialized data stored in the database.
+ *
+ * @param <T>
+ *            the type of the objects
+ * 
+ * @author Patrick Haas
+ */
+public interface ViewCodec<T> {
+
+	byte[] encode(T object) throws IOException;
+
+	T decode(byte[] data) throws IOException;
+
+	/**
+	 * Create a streaming parser for serialized data, which is used to read parts of an object without decoding it.
+	 */
+	JsonParser createParser(byte[] data) throws IOException;
+
+	/**
+	 * Decode serialized data that is held in a (direct) buffer. The data is streamed from the buffer, not copied.
+	 */
+	T decode(ByteBuffer data) throws IOException;
+
+	JsonParser createParser(ByteBuffer data) throws IOException;
+
+	/**
+	 * @return whether the serialized data is JSON text
+	 */
+	boolean isJson(byte[] data);
+}
@@ -2,6 +2,13 @@ package io.phaas.viewmanager;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.persistence.Transient;
 import javax.persistence.Version;
@@ -10,27 +17,47 @@ import com.fasterxml.jackson.annotation.JsonRawValue;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.filter.FilteringParserDelegate;
+import com.fasterxml.jackson.core.filter.JsonPointerBasedFilter;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public abstract class ViewEntity<T> {
 	private transient boolean dirty;
+	/** Incremented whenever the object may have been modified */
+	private transient int generation;
+	/** The generation that serializedData has been produced from */
+	private transient int serializedGeneration;
 	private transient T object;
 	private transient ObjectMapper objectMapper;
+	private transient ViewCodec<T> codec;
+	private transient ViewManagerSession<?> session;
+	private transient boolean modificationReported;
+	private transient ViewManagerMetrics metrics = ViewManagerMetrics.NONE;
+	private transient String view;
+	/** Serialized data held off-heap, which is read in place of serializedData until it's released */
+	private transient PooledBuffer serializedBuffer;
+	/** Reads the serialized data again, once the buffer of an object that has not been read has been released */
+	private transient Function<ViewEntity<?>, byte[]> serializedDataLoader;
+	/** Whether getSerializedData() returns null, see withoutSerializedData() */
+	private transient boolean serializedDataHidden;
 
 	private String id;
 	private byte[] serializedData;
 	private long version;
 
-	public static int serialization;
-
 	public T read() {
-		if (object == null && serializedData != null) {
+		if (object == null && hasSerializedData()) {
+			loadSerializedData();
 			TypeReference<T> typeReference = null;
 			try {
 				typeReference = typeReference();
-				object = objectMapper.reader(typeReference).readValue(serializedData);
+				object = serializedBuffer != null ? getCodec().decode(serializedBuffer.data()) : getCodec().decode(serializedData);
 			} catch (Exception e) {
 				throw new RuntimeException(String.format("Can't deserialize %s",
 						typeReference == null ? "unknown" : typeReference.getType()), e);
@@ -39,20 +66,122 @@ public abstract class ViewEntity<T> {
 		return object;
 	}
 
+	/**
+	 * Read a single value of the object without deserializing the whole object. The serialized data is only parsed up
+	 * to the requested value; only the value itself is bound.
+	 * 
+	 * @return the value, or null if the object doesn't contain the path
+	 */
+	public <V> V readPath(JsonPointer pointer, Class<V> type) {
+		JsonNode node = readPath(pointer);
+		try {
+			return node == null ? null : objectMapper.treeToValue(node, type);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(String.format("Can't deserialize %s of %s", pointer, id), e);
+		}
+	}
+
+	/**
+	 * Read a single value of the object without deserializing the whole object.
+	 * 
+	 * @return the value as a tree, or null if the object doesn't contain the path
+	 */
+	public JsonNode readPath(JsonPointer pointer) {
+		if (dirty) {
+			// The serialized data may be out of date
+			JsonNode tree = objectMapper.valueToTree(object);
+			JsonNode node = tree == null ? null : tree.at(pointer);
+			return node == null || node.isMissingNode() ? null : node;
+		}
+		if (!hasSerializedData()) {
+			return null;
+		}
+		loadSerializedData();
+
+		try (JsonParser parser = new FilteringParserDelegate(createParser(),
+				new JsonPointerBasedFilter(pointer), false, false)) {
+			return parser.nextToken() == null ? null : objectMapper.readTree(parser);
+		} catch (IOException e) {
+			throw new RuntimeException(String.format("Can't read %s of %s", pointer, id), e);
+		}
+	}
+
+	/**
+	 * Read some top-level fields of the object without deserializing the whole object. The serialized data is only
+	 * parsed until all fields have been found; the values of other fields are skipped.
+	 * 
+	 * @return the values of the fields that the object contains, by name
+	 */
+	public Map<String, JsonNode> readFields(String... names) {
+		Map<String, JsonNode> result = new HashMap<>(names.length * 2);
+		if (dirty) {
+			// The serialized data may be out of date
+			JsonNode tree = objectMapper.valueToTree(object);
+			for (String name : names) {
+				if (tree != null && tree.has(name)) {
+					result.put(name, tree.get(name));
+				}
+			}
+			return result;
+		}
+		if (!hasSerializedData()) {
+			return result;
+		}
+		loadSerializedData();
+
+		Set<String> remaining = new HashSet<>(Arrays.asList(names));
+		try (JsonParser parser = createParser()) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return result;
+			}
+			while (!remaining.isEmpty() && parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (remaining.remove(name)) {
+					result.put(name, objectMapper.readTree(parser));
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(String.format("Can't read %s of %s", Arrays.toString(names), id), e);
+		}
+		return result;
+	}
+
 	public T write() {
+		modified();
 		dirty = true;
+		generation++;
 		return read();
 	}
 
+	/**
+	 * Serialized data that is held off-heap is copied to the heap (and released) when this method is called. The
+	 * returned array may be shared with a {@link ViewCache} and must not be modified.
+	 */
 	public byte[] getSerializedData() {
+		if (serializedDataHidden) {
+			return null;
+		}
+		loadSerializedData();
 		updateSerializedData();
+		copySerializedBuffer();
 		return serializedData;
 	}
 
 	@JsonValue
 	@JsonRawValue
 	public String generateRawJsonString() {
-		return new String(getSerializedData(), StandardCharsets.UTF_8);
+		byte[] data = getSerializedData();
+		if (data == null || getCodec().isJson(data)) {
+			return data == null ? null : new String(data, StandardCharsets.UTF_8);
+		}
+		try (JsonParser parser = getCodec().createParser(data)) {
+			return objectMapper.writeValueAsString(objectMapper.readTree(parser));
+		} catch (IOException e) {
+			throw new RuntimeException(String.format("Can't convert %s to JSON", id), e);
+		}
 	}
 
 	public String getId() {
@@ -60,7 +189,9 @@ public abstract class ViewEntity<T> {
 	}
 
 	public void setObject(T object) {
+		modified();
 		this.dirty = true;
+		this.generation++;
 		this.object = object;
 	}
 
@@ -68,7 +199,16 @@ public abstract class ViewEntity<T> {
 		this.objectMapper = objectMapper;
 	}
 
+	/**
+	 * Set the codec of the serialized data. By default, the object is serialized as JSON by the object mapper.
+	 */
+	@SuppressWarnings("unchecked")
+	public void setCodec(ViewCodec<?> codec) {
+		this.codec = (ViewCodec<T>) codec;
+	}
+
 	public void setSerializedData(byte[] serializedData) {
+		dropSerializedBuffer();
 		this.serializedData = serializedData;
 	}
 
@@ -76,16 +216,136 @@ public abstract class ViewEntity<T> {
 		this.id = svcOrderId;
 	}
 
+	/**
+	 * Must be called before the entity is modified. {@link #write()} and {@link #setObject(Object)} take care of the
+	 * serialized object, subclasses must call this method from the setters of all attributes that are stored in the
+	 * database. Otherwise modifications of an attached entity will not be detected, unless the view manager compares all
+	 * loaded entities, see {@link AbstractViewManager#setDetectUnreportedModifications(boolean)}.
+	 */
+	protected void modified() {
+		if (session != null) {
+			session.modified(this, modificationReported);
+			modificationReported = true;
+		}
+	}
+
+	void setMetrics(ViewManagerMetrics metrics, String view) {
+		this.metrics = metrics;
+		this.view = view;
+	}
+
+	void attach(ViewManagerSession<?> session) {
+		this.session = session;
+		this.modificationReported = false;
+	}
+
+	/**
+	 * Called before the entity is written to the database. The object of a dirty entity may have been modified through
+	 * a reference obtained from an earlier {@link #write()}, so it will be serialized once more.
+	 */
+	void beforeFlush() {
+		if (dirty) {
+			generation++;
+		}
+	}
+
+	/**
+	 * Read the serialized data from a pooled buffer, see {@link ViewCache#ViewCache(long, ViewBufferPool)}. The entity
+	 * takes over the reference of the caller.
+	 */
+	void setSerializedBuffer(PooledBuffer serializedBuffer) {
+		dropSerializedBuffer();
+		this.serializedData = null;
+		this.serializedBuffer = serializedBuffer;
+	}
+
+	/**
+	 * Produce a result while {@link #getSerializedData()} returns null, e.g. values of the attributes, so that the
+	 * serialized data is neither produced nor copied from a pooled buffer.
+	 */
+	<V> V withoutSerializedData(Supplier<V> supplier) {
+		serializedDataHidden = true;
+		try {
+			return supplier.get();
+		} finally {
+			serializedDataHidden = false;
+		}
+	}
+
+	boolean hasSerializedBuffer() {
+		return serializedBuffer != null;
+	}
+
+	/**
+	 * Remove the pooled buffer of the serialized data without releasing it. The caller takes over the reference.
+	 */
+	PooledBuffer takeSerializedBuffer() {
+		PooledBuffer buffer = serializedBuffer;
+		serializedBuffer = null;
+		return buffer;
+	}
+
+	/**
+	 * Release the pooled buffer of the serialized data, if there is one. Called when the transaction of the session
+	 * completes. The data of an object that has not been read yet is read again by the loader when it's needed; the data
+	 * of an object that has been read is serialized again if it's needed.
+	 */
+	void releaseSerializedBuffer(Function<ViewEntity<?>, byte[]> loader) {
+		boolean unread = serializedBuffer != null && object == null;
+		dropSerializedBuffer();
+		if (unread) {
+			serializedDataLoader = loader;
+		}
+	}
+
+	/**
+	 * Copy the serialized data from the pooled buffer to the heap and release the buffer, for entities whose buffer is
+	 * not released by a session.
+	 */
+	void copySerializedBuffer() {
+		if (serializedBuffer != null) {
+			serializedData = serializedBuffer.toByteArray();
+			dropSerializedBuffer();
+		}
+	}
+
+	private void dropSerializedBuffer() {
+		serializedDataLoader = null;
+		if (serializedBuffer != null) {
+			serializedBuffer.release();
+			serializedBuffer = null;
+		}
+	}
+
+	private void loadSerializedData() {
+		if (serializedDataLoader != null) {
+			Function<ViewEntity<?>, byte[]> loader = serializedDataLoader;
+			serializedDataLoader = null;
+			serializedData = loader.apply(this);
+		}
+	}
+
+	private boolean hasSerializedData() {
+		return serializedData != null || serializedBuffer != null || serializedDataLoader != null;
+	}
+
+	private JsonParser createParser() throws IOException {
+		return serializedBuffer != null ? getCodec().createParser(serializedBuffer.data()) : getCodec().createParser(serializedData);
+	}
+
 	private void updateSerializedData() {
 		try {
-			if (dirty) {
-				serializedData = object == null ? null : objectMapper.writeValueAsBytes(object);
-				// Once an entity is dirty, it must remain dirty while it's attached to the entity manager
-				// Otherwise changes made after an EntityManager.flush() will be lost.
-				serialization++;
-				// dirty = false;
+			// Once an entity is dirty, it must remain dirty while it's attached to the entity manager
+			// Otherwise changes made after an EntityManager.flush() will be lost.
+			// The serialized data is only regenerated when the object may have been modified since.
+			// Data read from a released buffer is serialized again
+			if (dirty && serializedGeneration != generation || serializedData == null && serializedBuffer == null && object != null) {
+				serializedData = object == null ? null : getCodec().encode(object);
+				dropSerializedBuffer();
+				serializedGeneration = generation;
+				metrics.serialized(view, serializedData == null ? 0 : serializedData.length);
 			}
-		} catch (JsonProcessingException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
 		}
@@ -111,4 +371,11 @@ public abstract class ViewEntity<T> {
 		return objectMapper;
 	}
 
+	protected ViewCodec<T> getCodec() {
+		if (codec == null) {
+			codec = new JacksonViewCodec<>(typeReference(), objectMapper);
+		}
+		return codec;
+	}
+
 }
@@ -0,0 +1,62 @@
+package io.phaas.viewmanager;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.util.Assert;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * A Bloom filter of the ids of a view, see {@link AbstractViewManager#buildIdFilter(int, double)}. Ids that have never
+ * been added are rejected with the configured false positive probability; ids that have been added are never rejected.
+ * Until the filter is complete, no id is rejected.
+ *
+ * @author Patrick Haas
+ */
+public class ViewIdFilter {
+
+	private final BloomFilter<CharSequence> filter;
+	private volatile boolean complete;
+
+	public ViewIdFilter(int expectedIds, double falsePositiveProbability) {
+		Assert.isTrue(expectedIds > 0, "Expected number of ids must be positive");
+		Assert.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1, "False positive probability must be between 0 and 1");
+		this.filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedIds, falsePositiveProbability);
+	}
+
+	/**
+	 * @return false if the id definitely doesn't exist
+	 */
+	public boolean mightContain(String id) {
+		if (!complete) {
+			return true;
+		}
+		// Guava's Bloom filters are not thread-safe
+		synchronized (filter) {
+			return filter.mightContain(id);
+		}
+	}
+
+	public void put(String id) {
+		synchronized (filter) {
+			filter.put(id);
+		}
+	}
+
+	/**
+	 * @return the probability that an id that doesn't exist is not rejected, given the ids added so far
+	 */
+	public double getExpectedFalsePositiveProbability() {
+		synchronized (filter) {
+			return filter.expectedFpp();
+		}
+	}
+
+	/**
+	 * Called once all existing ids have been added.
+	 */
+	void complete() {
+		this.complete = true;
+	}
+}
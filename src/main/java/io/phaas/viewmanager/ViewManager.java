@@ -1,5 +1,9 @@
 package io.phaas.viewmanager;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
 import javax.persistence.EntityNotFoundException;
 
 public interface ViewManager<E extends ViewEntity<?>, I> {
@@ -9,6 +13,17 @@ public interface ViewManager<E extends ViewEntity<?>, I> {
 	 */
 	void persist(E entity);
 
+	/**
+	 * Create a new view or update the existing view with this id. The updater is applied once, either to the existing
+	 * view or to a new one, when the view is accessed or the transaction commits. The existing views of all pending
+	 * updaters are selected at once, instead of one by one. A new view that has been inserted by another transaction in
+	 * the meantime causes an optimistic locking failure.
+	 * 
+	 * @param id
+	 * @param updater
+	 */
+	void createOrUpdate(I id, Consumer<E> updater);
+
 	/**
 	 * Find an existing view with this id, and throw an error if it doesn't exist.
 	 * 
@@ -26,6 +41,24 @@ public interface ViewManager<E extends ViewEntity<?>, I> {
 	 */
 	E load(I id);
 
+	/**
+	 * Find all existing views with one of these ids. Views that are already attached to the session are not loaded
+	 * again.
+	 * 
+	 * @param ids
+	 * @return the views, in the order of <code>ids</code>. Views that don't exist are omitted.
+	 */
+	List<E> loadAll(Collection<I> ids);
+
+	/**
+	 * Find all views with one of these ids, and throw an error if any of them doesn't exist.
+	 * 
+	 * @param ids
+	 * @return the views, in the order of <code>ids</code>
+	 * @throws EntityNotFoundException
+	 */
+	List<E> requireAll(Collection<I> ids) throws EntityNotFoundException;
+
 	/**
 	 * Delete the view with this id.
 	 * 
@@ -0,0 +1,83 @@
+package io.phaas.viewmanager;
+
+/**
+ * Receives measurements of view managers, e.g. to forward them to a monitoring system. All methods do nothing by
+ * default. Measurements are reported on the threads that make them, so implementations must be thread-safe. They are
+ * reported on the hot path and should be cheap.
+ * <p>
+ * Every measurement names the view it belongs to, which is the table name of its view manager.
+ *
+ * @author Patrick Haas
+ */
+public interface ViewManagerMetrics {
+
+	/** Does nothing */
+	ViewManagerMetrics NONE = new ViewManagerMetrics() {
+	};
+
+	/**
+	 * An entity has been found in the session.
+	 */
+	default void sessionHit(String view) {
+	}
+
+	/**
+	 * An entity has not been found in the session and must be loaded.
+	 */
+	default void sessionMiss(String view) {
+	}
+
+	/**
+	 * Entities have been loaded from the database by id.
+	 */
+	default void loaded(String view, int rows) {
+	}
+
+	/**
+	 * A query has returned rows from the database, which are merged with the session.
+	 */
+	default void found(String view, int rows) {
+	}
+
+	/**
+	 * An object has been serialized.
+	 */
+	default void serialized(String view, int bytes) {
+	}
+
+	/**
+	 * A session has been flushed. The times are totals of all statements of the session, not of individual statements
+	 * or batches; implementations that need distributions, e.g. histograms, must record them from these totals.
+	 * 
+	 * @param serializeNanos
+	 *            the time spent serializing (or waiting for the serialization of) modified objects
+	 * @param executeNanos
+	 *            the time spent executing statements
+	 */
+	default void flushed(String view, long serializeNanos, long executeNanos) {
+	}
+
+	/**
+	 * A JDBC batch has been executed.
+	 */
+	default void batchExecuted(String view, int rows) {
+	}
+
+	/**
+	 * A statement didn't affect the expected rows, because they have been modified or removed concurrently.
+	 */
+	default void optimisticLockFailure(String view) {
+	}
+
+	/**
+	 * A shard of a {@link ProjectionExecutor} has committed a batch of tasks. Throughput follows from the committed
+	 * tasks over time.
+	 * 
+	 * @param lagNanos
+	 *            the time between the submission of the oldest task of the batch and its commit
+	 * @param executeNanos
+	 *            the time spent executing and committing the batch
+	 */
+	default void projected(String view, int tasks, long lagNanos, long executeNanos) {
+	}
+}
@@ -1,88 +1,596 @@
 package io.phaas.viewmanager;
 
-import io.phaas.viewmanager.ViewManagerSession.EntityStatus.Status;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
-public class ViewManagerSession<E extends ViewEntity<?>> {
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.support.TransactionSynchronization;
 
-	static class EntityStatus<E> {
-		enum Status {
-			ADDED, LOADED, REMOVED;
-		}
+/**
+ * The entities a view manager has loaded, added or removed in a single transaction.
+ * <p>
+ * Attached entities are kept in a hash index by id. Changes are tracked separately, so that committing a session only
+ * has to look at the entities that have been added, modified or removed, regardless of how many entities have been
+ * loaded. Loaded entities report their first modification to the session, which takes a snapshot of their values at
+ * that time. If the view manager detects unreported modifications, see
+ * {@link AbstractViewManager#setDetectUnreportedModifications(boolean)}, the attributes of all loaded entities are
+ * snapshotted when they are loaded and compared on commit instead.
+ */
+public class ViewManagerSession<E extends ViewEntity<?>> {
 
-		public final String id;
-		public final E item;
-		public final long version;
-		public Status status;
+	static final class Upsert<E> {
+		final String id;
+		/** Updaters that are applied once it has been determined whether the entity exists */
+		final List<Consumer<E>> updaters = new ArrayList<>(1);
 
-		public EntityStatus(String id, E item, long version, Status status) {
+		Upsert(String id) {
 			this.id = id;
-			this.item = item;
-			this.version = version;
-			this.status = status;
 		}
 	}
 
 	private final AbstractViewManager<E, ?, ?> vm;
-	private final Map<String, EntityStatus<E>> entities = new TreeMap<>();
+	/** Whether loaded entities are compared with a snapshot on commit, regardless of reported modifications */
+	private final boolean detectUnreported;
+
+	/** All loaded and added entities */
+	private final Map<String, E> entities;
+	private final Map<String, E> added;
+	/**
+	 * The values of modified entities before their first modification. When unreported modifications are detected, the
+	 * values of all loaded entities, without their serialized data until they report a modification.
+	 */
+	private final Map<String, Object[]> snapshots;
+	/** Loaded entities that have reported a modification */
+	private final Set<String> modified;
+	private final Set<String> removed;
+	private final Map<String, Upsert<E>> upserted;
+	/** Added entities that have been created by resolving an upsert, which are inserted unless they exist by then */
+	private final Set<String> created;
+	/** Ids that have been looked up but don't exist */
+	private final Set<String> missing;
+
+	private final Map<String, SessionIndex<E>> indexes;
+	/** Entities that may have been modified since they have been indexed */
+	private final Map<String, E> stale;
+
+	private final List<Object[]> written;
+	/** Entities that read their serialized data from a pooled buffer */
+	private final Collection<ViewEntity<?>> buffered;
+	/** Changes that are queued once the transaction has committed, see {@link WriteBehindQueue} */
+	private WriteBehindQueue.Changes writeBehind;
+
+	/** Time spent in {@link #commit()} */
+	private long serializeNanos;
+	private long executeNanos;
 
 	public ViewManagerSession(AbstractViewManager<E, ?, ?> vm) {
+		this(vm, false);
+	}
+
+	/**
+	 * @param concurrent
+	 *            whether the state of the session is kept in concurrent maps, see {@link ConcurrentViewManagerSession}
+	 */
+	ViewManagerSession(AbstractViewManager<E, ?, ?> vm, boolean concurrent) {
+		this(vm, concurrent, false);
+	}
+
+	/**
+	 * @param readOnly
+	 *            whether the session only keeps loaded entities, see {@link ReadOnlyViewManagerSession}. The maps that
+	 *            track changes and the indexes are not allocated.
+	 */
+	ViewManagerSession(AbstractViewManager<E, ?, ?> vm, boolean concurrent, boolean readOnly) {
 		this.vm = vm;
+		this.entities = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.missing = concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+		this.buffered = concurrent ? new ConcurrentLinkedQueue<>() : new ArrayList<>();
+		if (readOnly) {
+			this.detectUnreported = false;
+			this.added = Collections.emptyMap();
+			this.snapshots = Collections.emptyMap();
+			this.modified = Collections.emptySet();
+			this.removed = Collections.emptySet();
+			this.upserted = Collections.emptyMap();
+			this.created = Collections.emptySet();
+			this.stale = Collections.emptyMap();
+			this.indexes = Collections.emptyMap();
+			this.written = Collections.emptyList();
+			return;
+		}
+		this.detectUnreported = vm.isDetectUnreportedModifications();
+		this.added = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.snapshots = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.modified = concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+		this.removed = concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+		this.upserted = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.created = concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+		this.stale = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+		this.indexes = new HashMap<>();
+		this.written = new ArrayList<>();
+		vm.getIndexes().forEach((name, attribute) -> indexes.put(name, new SessionIndex<>(attribute, concurrent)));
+	}
+
+	public String getTableName() {
+		return vm.getPersistence().getTableName();
 	}
 
 	public void add(E entity) {
-		entities.put(entity.getId(), new EntityStatus<E>(entity.getId(), entity, 0, Status.ADDED));
+		String id = entity.getId();
+		missing.remove(id);
+		snapshots.remove(id);
+		modified.remove(id);
+		entities.put(id, entity);
+		added.put(id, entity);
+		entity.attach(this);
+		index(entity);
 	}
 
-	public void addLoadedObject(E entity, long version) {
-		entities.put(entity.getId(), new EntityStatus<E>(entity.getId(), entity, entity.getVersion(), Status.LOADED));
+	/**
+	 * @return the attached entity, which is <code>entity</code> unless another thread has attached the same id
+	 *         concurrently
+	 */
+	public E addLoadedObject(E entity, long version) {
+		E attached = putLoaded(entity);
+		if (attached != null) {
+			return attached;
+		}
+		if (detectUnreported) {
+			snapshots.put(entity.getId(), vm.getAttributeValues(entity));
+		}
+		index(entity);
+		return entity;
+	}
+
+	/**
+	 * Put a loaded entity into the identity map and attach it, unless the id has been attached already.
+	 * 
+	 * @return the entity that has been attached before, or null if <code>entity</code> has been attached
+	 */
+	E putLoaded(E entity) {
+		E attached = entities.putIfAbsent(entity.getId(), entity);
+		if (attached != null) {
+			return attached;
+		}
+		missing.remove(entity.getId());
+		entity.attach(this);
+		return null;
+	}
+
+	/**
+	 * @return whether attached entities may have been modified since they have been loaded, so that they may no longer
+	 *         match a query of the database
+	 */
+	boolean isModifiable() {
+		return true;
 	}
 
 	public void addRemovedObject(String id) {
-		EntityStatus<E> entityStatus = entities.get(id);
-		if (entityStatus != null) {
-			entityStatus.status = Status.REMOVED;
-		} else {
-			entities.put(id, new EntityStatus<E>(id, null, 0, Status.REMOVED));
+		if (upserted.containsKey(id)) {
+			resolve(upserted.get(id));
+		}
+
+		E entity = entities.remove(id);
+		if (entity != null) {
+			entity.attach(null);
+			for (SessionIndex<E> index : indexes.values()) {
+				index.remove(id);
+			}
+			stale.remove(id);
+		}
+		snapshots.remove(id);
+		modified.remove(id);
+		created.remove(id);
+		if (added.remove(id) == null) {
+			removed.add(id);
+		}
+	}
+
+	/**
+	 * Record an updater of an entity that may not have been loaded yet. It's applied once, when it's determined whether
+	 * the entity exists: when the id is accessed, or when the session is committed.
+	 */
+	public void addUpsert(String id, Consumer<E> updater) {
+		Upsert<E> upsert = upserted.get(id);
+		if (upsert == null) {
+			E existing = find(id);
+			if (existing != null) {
+				updater.accept(existing);
+				return;
+			}
+			upsert = new Upsert<>(id);
+			upserted.put(id, upsert);
 		}
+		upsert.updaters.add(updater);
+	}
+
+	/**
+	 * Called by an attached entity before it is modified.
+	 * 
+	 * @param reported
+	 *            whether the entity has reported a modification before
+	 */
+	@SuppressWarnings("unchecked")
+	void modified(ViewEntity<?> entity, boolean reported) {
+		String id = entity.getId();
+		if (!reported && !added.containsKey(id) && modified.add(id)) {
+			// The object hasn't been modified yet
+			Object[] snapshot = snapshots.get(id);
+			if (snapshot == null) {
+				snapshots.put(id, vm.getObjectValues((E) entity));
+			} else {
+				snapshot[ViewCache.SERIALIZED_DATA] = entity.getSerializedData();
+			}
+		}
+		if (!indexes.isEmpty()) {
+			stale.put(id, (E) entity);
+		}
+	}
+
+	/**
+	 * @return whether the id has been looked up in this session, but didn't exist. The session doesn't look for rows that
+	 *         have been inserted by other transactions since.
+	 */
+	public boolean isMissing(String id) {
+		return missing.contains(id);
+	}
+
+	public void addMissing(String id) {
+		missing.add(id);
 	}
 
 	public E find(String id) {
-		EntityStatus<E> entityStatus = entities.get(id);
-		if (entityStatus == null) {
-			return null;
+		E entity = entities.get(id);
+		if (entity != null) {
+			return entity;
 		}
-		if (entityStatus.status != Status.REMOVED) {
-			return entityStatus.item;
-		} else {
+		if (removed.contains(id)) {
 			throw new ObjectDeletedException("Cannot load item " + id + " as it has been removed");
 		}
+		Upsert<E> upsert = upserted.get(id);
+		return upsert == null ? null : resolve(upsert);
 	}
 
 	public List<E> find(Predicate<E> matcher) {
-		return entities.values().stream().filter(es -> es.status != Status.REMOVED).map(es -> es.item)//
-				.filter(matcher).collect(Collectors.toList());
+		if (!upserted.isEmpty()) {
+			resolveAll();
+		}
+
+		List<E> result = new ArrayList<>();
+		for (E entity : entities.values()) {
+			if (matcher.test(entity)) {
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find all attached entities whose indexed attribute matches one of the values.
+	 */
+	public List<E> find(String indexName, Collection<?> values) {
+		SessionIndex<E> index = indexes.get(indexName);
+		if (index == null) {
+			throw new IllegalArgumentException("Unknown index " + indexName);
+		}
+		if (!upserted.isEmpty()) {
+			resolveAll();
+		}
+		if (!stale.isEmpty()) {
+			for (Iterator<E> it = stale.values().iterator(); it.hasNext();) {
+				E entity = it.next();
+				it.remove();
+				reindex(entity);
+			}
+		}
+
+		if (values.size() == 1) {
+			return new ArrayList<>(index.get(values.iterator().next()).values());
+		}
+		List<E> result = new ArrayList<>();
+		for (Object value : new HashSet<>(values)) {
+			result.addAll(index.get(value).values());
+		}
+		return result;
 	}
 
 	public void commit() {
-		Set<String> removedObjects = entities.values().stream()//
-				.filter(es -> es.status == Status.REMOVED).map(es -> es.id).collect(Collectors.toSet());
-		vm.delete(removedObjects);
-
-		entities.values().stream().filter(es -> es.status == Status.LOADED).forEach(es -> {
-			if (vm.isModified(es.item)) {
-				vm.incrementVersion(es.item);
-				vm.update(es.item, es.version);
+		if (!upserted.isEmpty()) {
+			resolveAll();
+		}
+
+		// Statements are executed in the order of ids, so that row locks are acquired in a deterministic order
+		if (!removed.isEmpty()) {
+			long start = System.nanoTime();
+			vm.delete(new TreeSet<>(removed));
+			executeNanos += System.nanoTime() - start;
+		}
+
+		if (!modified.isEmpty() || detectUnreported && !snapshots.isEmpty()) {
+			List<String> ids = changed();
+			if (!ids.isEmpty()) {
+				update(ids);
+			}
+		}
+
+		if (!added.isEmpty()) {
+			List<E> entities = new ArrayList<>(added.size());
+			List<E> upserts = new ArrayList<>(created.size());
+			for (String id : sorted(added.keySet())) {
+				// The write-behind queue checks for existing items itself
+				if (created.contains(id) && vm.getWriteBehindQueue() == null) {
+					upserts.add(added.get(id));
+				} else {
+					entities.add(added.get(id));
+				}
+			}
+			flush(entities, chunk -> {
+				List<Object[]> rows = new ArrayList<>(chunk.size());
+				for (E entity : chunk) {
+					rows.add(vm.getObjectValues(entity));
+				}
+				vm.insert(rows);
+				written.addAll(rows);
+			});
+			if (!upserts.isEmpty()) {
+				commitUpserts(upserts);
+			}
+		}
+		vm.getMetrics().flushed(getTableName(), serializeNanos, executeNanos);
+	}
+
+	public void afterCompletion(int status) {
+		releaseBuffers();
+		boolean committed = status == TransactionSynchronization.STATUS_COMMITTED;
+		if (writeBehind != null) {
+			writeBehind.complete(committed);
+		}
+		vm.afterCompletion(written, removed, committed);
+	}
+
+	/**
+	 * @return the changes of this session that are handed to the write-behind queue of the view manager
+	 */
+	WriteBehindQueue.Changes writeBehind() {
+		if (writeBehind == null) {
+			writeBehind = vm.getWriteBehindQueue().begin();
+		}
+		return writeBehind;
+	}
+
+	/**
+	 * Track an entity that has been restored from an off-heap cache entry, see {@link ViewCache}.
+	 */
+	void addBuffered(ViewEntity<?> entity) {
+		buffered.add(entity);
+	}
+
+	/**
+	 * Release the pooled buffers of all entities that have been restored from an off-heap cache entry. Entities that
+	 * have not been read load their data again when they are read.
+	 */
+	void releaseBuffers() {
+		buffered.forEach(e -> e.releaseSerializedBuffer(vm::loadSerializedData));
+		buffered.clear();
+	}
+
+	/**
+	 * @return the sorted ids of all loaded entities that may have been modified. When unreported modifications are
+	 *         detected, the attributes of entities that haven't reported a modification are compared as well.
+	 */
+	private List<String> changed() {
+		List<String> ids = new ArrayList<>(modified);
+		if (!detectUnreported) {
+			Collections.sort(ids);
+			return ids;
+		}
+		snapshots.forEach((id, snapshot) -> {
+			if (!modified.contains(id)) {
+				E entity = entities.get(id);
+				if (!vm.getModifiedValues(snapshot, vm.getAttributeValues(entity)).isEmpty()) {
+					snapshot[ViewCache.SERIALIZED_DATA] = entity.getSerializedData();
+					ids.add(id);
+				}
+			}
+		});
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Update all entities that have actually been modified.
+	 */
+	private void update(List<String> ids) {
+		List<E> entities = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			entities.add(this.entities.get(id));
+		}
+
+		flush(entities, chunk -> {
+			List<Object[]> rows = new ArrayList<>(chunk.size());
+			long[] versions = new long[chunk.size()];
+			BitSet[] columns = new BitSet[chunk.size()];
+			int count = 0;
+			for (E entity : chunk) {
+				BitSet changed = vm.getModifiedValues(snapshots.get(entity.getId()), vm.getObjectValues(entity));
+				if (!changed.isEmpty()) {
+					columns[count] = changed;
+					versions[count++] = entity.getVersion();
+					vm.incrementVersion(entity);
+					rows.add(vm.getObjectValues(entity));
+				}
+			}
+
+			if (count > 0) {
+				if (count < versions.length) {
+					versions = Arrays.copyOf(versions, count);
+					columns = Arrays.copyOf(columns, count);
+				}
+				vm.update(rows, versions, columns);
+				written.addAll(rows);
 			}
 		});
-		entities.values().stream().filter(es -> es.status == Status.ADDED).forEach(es -> {
-			vm.insert(es.item);
+	}
+
+	/**
+	 * Insert the entities that have been created by resolving upserts. An item that has been inserted by another
+	 * transaction since it has been resolved is a conflict, as its updaters have been applied to a new entity.
+	 */
+	private void commitUpserts(List<E> entities) {
+		flush(entities, chunk -> {
+			List<Object[]> rows = new ArrayList<>(chunk.size());
+			for (E entity : chunk) {
+				rows.add(vm.getObjectValues(entity));
+			}
+			boolean[] inserted = vm.insertIfAbsent(rows);
+			for (int i = 0; i < inserted.length; i++) {
+				if (!inserted[i]) {
+					throw new OptimisticLockingFailureException("Item " + chunk.get(i).getId() + " was inserted concurrently");
+				}
+				written.add(rows.get(i));
+			}
 		});
 	}
+
+	/**
+	 * Write entities to the database in chunks. If the view manager has a serialization executor, the serialized data
+	 * of all chunks is produced in parallel, and each chunk is written as soon as it has been serialized, while the
+	 * following chunks are still being serialized. If writing a chunk fails, the chunks that are still being serialized
+	 * stop before their next entity.
+	 */
+	private void flush(List<E> entities, Consumer<List<E>> writer) {
+		entities.forEach(e -> e.beforeFlush());
+
+		Executor executor = vm.getSerializationExecutor();
+		int chunkSize = vm.getSerializationBatchSize();
+		if (executor == null || entities.size() <= chunkSize) {
+			long start = System.nanoTime();
+			entities.forEach(e -> e.getSerializedData());
+			long serialized = System.nanoTime();
+			writer.accept(entities);
+			serializeNanos += serialized - start;
+			executeNanos += System.nanoTime() - serialized;
+			return;
+		}
+
+		// Cancelling a future doesn't interrupt a chunk that is already being serialized
+		AtomicBoolean cancelled = new AtomicBoolean();
+		List<CompletableFuture<List<E>>> chunks = new ArrayList<>();
+		for (int i = 0; i < entities.size(); i += chunkSize) {
+			List<E> chunk = entities.subList(i, Math.min(i + chunkSize, entities.size()));
+			chunks.add(CompletableFuture.supplyAsync(() -> {
+				for (E entity : chunk) {
+					if (cancelled.get()) {
+						break;
+					}
+					entity.getSerializedData();
+				}
+				return chunk;
+			}, executor));
+		}
+
+		try {
+			for (CompletableFuture<List<E>> chunk : chunks) {
+				long start = System.nanoTime();
+				List<E> serialized = chunk.join();
+				long ready = System.nanoTime();
+				writer.accept(serialized);
+				serializeNanos += ready - start;
+				executeNanos += System.nanoTime() - ready;
+			}
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		} finally {
+			cancelled.set(true);
+			chunks.forEach(chunk -> chunk.cancel(false));
+		}
+	}
+
+	/**
+	 * Determine whether all upserted entities exist, with a single select.
+	 */
+	private void resolveAll() {
+		List<Upsert<E>> pending = new ArrayList<>(upserted.values());
+		List<String> ids = new ArrayList<>(pending.size());
+		for (Upsert<E> upsert : pending) {
+			ids.add(upsert.id);
+		}
+		Map<String, E> existing = new HashMap<>();
+		for (E entity : vm.select(ids)) {
+			existing.put(entity.getId(), entity);
+		}
+		for (Upsert<E> upsert : pending) {
+			resolve(upsert, existing.get(upsert.id));
+		}
+	}
+
+	E resolve(Upsert<E> upsert) {
+		return resolve(upsert, vm.select(upsert.id));
+	}
+
+	/**
+	 * Apply the updaters of an upsert, either to the existing entity, which is attached, or to a new entity, which is
+	 * added.
+	 * 
+	 * @param existing
+	 *            the entity that has been selected, or null if it doesn't exist
+	 */
+	E resolve(Upsert<E> upsert, E existing) {
+		if (upserted.remove(upsert.id) != upsert) {
+			// Resolved by another thread of a concurrent session
+			return entities.get(upsert.id);
+		}
+
+		if (existing == null) {
+			E entity = vm.initializeObject(vm.newEntity(upsert.id));
+			upsert.updaters.forEach(updater -> updater.accept(entity));
+			add(entity);
+			created.add(upsert.id);
+			return entity;
+		}
+
+		E entity = addLoadedObject(existing, existing.getVersion());
+		upsert.updaters.forEach(updater -> updater.accept(entity));
+		return entity;
+	}
+
+	private void index(E entity) {
+		for (SessionIndex<E> index : indexes.values()) {
+			index.update(entity);
+		}
+	}
+
+	/**
+	 * Update the indexes of an entity that may have been modified since it has been indexed.
+	 */
+	void reindex(E entity) {
+		index(entity);
+	}
+
+	private static List<String> sorted(Collection<String> ids) {
+		List<String> result = new ArrayList<>(ids);
+		Collections.sort(result);
+		return result;
+	}
 }
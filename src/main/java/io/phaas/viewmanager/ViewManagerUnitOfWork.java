@@ -0,0 +1,133 @@
+package io.phaas.viewmanager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * All view manager sessions of a single transaction. Every view manager has its own session, but all of them are
+ * flushed together before the transaction commits. Sessions are flushed one table at a time, in the order of their
+ * table names, so that the statements of each table are batched together and row locks are always acquired in the same
+ * order.
+ * <p>
+ * In read-only transactions, sessions only serve as identity maps. They don't track changes and are not flushed.
+ * <p>
+ * A unit of work is bound to the thread of its transaction. Tasks wrapped by {@link #share(Callable)} use the unit of
+ * work of the transaction that wrapped them on any other thread.
+ *
+ * @author Patrick Haas
+ */
+class ViewManagerUnitOfWork extends TransactionSynchronizationAdapter {
+
+	private static final String RESOURCE_KEY = ViewManagerUnitOfWork.class.getCanonicalName();
+
+	private static final Comparator<ViewManagerSession<?>> TABLE_ORDER = Comparator.comparing(session -> session.getTableName());
+
+	/** The unit of work shared with the current (worker) thread */
+	private static final ThreadLocal<ViewManagerUnitOfWork> shared = new ThreadLocal<>();
+
+	private final Map<AbstractViewManager<?, ?, ?>, ViewManagerSession<?>> sessions = new LinkedHashMap<>();
+
+	private final boolean readOnly;
+	private volatile boolean completed;
+
+	private ViewManagerUnitOfWork(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * @return the unit of work bound to the current transaction; a new unit of work is bound if necessary
+	 */
+	static ViewManagerUnitOfWork current() {
+		ViewManagerUnitOfWork sharedUnitOfWork = shared.get();
+		if (sharedUnitOfWork != null) {
+			if (sharedUnitOfWork.completed) {
+				throw new IllegalStateException("The transaction that shared its view manager sessions has already completed");
+			}
+			return sharedUnitOfWork;
+		}
+
+		ViewManagerUnitOfWork unitOfWork = (ViewManagerUnitOfWork) TransactionSynchronizationManager.getResource(RESOURCE_KEY);
+		if (unitOfWork == null) {
+			unitOfWork = new ViewManagerUnitOfWork(TransactionSynchronizationManager.isCurrentTransactionReadOnly());
+			TransactionSynchronizationManager.bindResource(RESOURCE_KEY, unitOfWork);
+			TransactionSynchronizationManager.registerSynchronization(unitOfWork);
+		}
+		return unitOfWork;
+	}
+
+	/**
+	 * Wrap a task, so that it uses the unit of work of the current transaction on the thread that runs it.
+	 */
+	static <T> Callable<T> share(Callable<T> task) {
+		ViewManagerUnitOfWork unitOfWork = current();
+		return () -> {
+			ViewManagerUnitOfWork previous = shared.get();
+			shared.set(unitOfWork);
+			try {
+				return task.call();
+			} finally {
+				if (previous == null) {
+					shared.remove();
+				} else {
+					shared.set(previous);
+				}
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	synchronized <E extends ViewEntity<?>> ViewManagerSession<E> getSession(AbstractViewManager<E, ?, ?> vm) {
+		if (shared.get() == this && !vm.isConcurrentSessions()) {
+			throw new IllegalStateException("View manager " + vm.getPersistence().getTableName()
+					+ " must use concurrent sessions to be shared with other threads");
+		}
+		ViewManagerSession<E> session = (ViewManagerSession<E>) sessions.get(vm);
+		if (session == null) {
+			if (readOnly) {
+				session = new ReadOnlyViewManagerSession<>(vm, vm.isConcurrentSessions());
+			} else {
+				session = vm.isConcurrentSessions() ? new ConcurrentViewManagerSession<>(vm) : new ViewManagerSession<>(vm);
+			}
+			sessions.put(vm, session);
+		}
+		return session;
+	}
+
+	private synchronized List<ViewManagerSession<?>> sessions() {
+		return new ArrayList<>(sessions.values());
+	}
+
+	@Override
+	public void beforeCommit(boolean readOnly) {
+		if (this.readOnly) {
+			return;
+		}
+		List<ViewManagerSession<?>> flushed = new ArrayList<>();
+		// Flushing a session may (indirectly) open sessions of other view managers
+		while (flushed.size() < sessions().size()) {
+			List<ViewManagerSession<?>> pending = sessions();
+			pending.removeAll(flushed);
+			pending.sort(TABLE_ORDER);
+			for (ViewManagerSession<?> session : pending) {
+				session.commit();
+				flushed.add(session);
+			}
+		}
+	}
+
+	@Override
+	public void afterCompletion(int status) {
+		completed = true;
+		TransactionSynchronizationManager.unbindResource(RESOURCE_KEY);
+		for (ViewManagerSession<?> session : sessions()) {
+			session.afterCompletion(status);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package io.phaas.viewmanager;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityNotFoundException;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.util.Assert;
+
+/**
+ * Rebuilds a view from scratch, see {@link AbstractViewManager#rebuild()}.
+ * <p>
+ * All entities are kept in an in-memory working set and are only written when the rebuild is {@link #flush() flushed},
+ * e.g. at the end of each chunk of events. Entities that haven't been written before are inserted, the others are
+ * updated without checking their version. The database is never asked whether an entity exists: only entities that
+ * have been written and then evicted from the working set are selected again.
+ * <p>
+ * Entities are not attached to a session, so every entity that has been accessed since the last flush is written. A
+ * rebuild is not thread-safe and the view must not be modified by anybody else while it is rebuilt.
+ *
+ * @author Patrick Haas
+ */
+public class ViewRebuild<E extends ViewEntity<?>, I> implements Closeable {
+
+	public static final int DEFAULT_MAX_WORKING_SET_SIZE = 100000;
+
+	private final AbstractViewManager<E, I, ?> vm;
+
+	private final Map<String, E> entities = new LinkedHashMap<>();
+	/** Entities that have been accessed since the last flush */
+	private final Set<String> accessed = new HashSet<>();
+	/** Ids of all entities that exist in the database */
+	private final Set<String> written = new HashSet<>();
+	private final Set<String> removed = new HashSet<>();
+
+	private int maxWorkingSetSize = DEFAULT_MAX_WORKING_SET_SIZE;
+
+	ViewRebuild(AbstractViewManager<E, I, ?> vm) {
+		this.vm = vm;
+	}
+
+	public E require(I id) throws EntityNotFoundException {
+		E result = load(id);
+		if (result == null) {
+			throw new EntityNotFoundException("Could not find view with id " + id);
+		}
+		return result;
+	}
+
+	public E load(I id) {
+		String key = id.toString();
+		E entity = entities.get(key);
+		if (entity == null && written.contains(key)) {
+			entity = vm.initializeObject(vm.getPersistence().select(key));
+			entities.put(key, entity);
+		}
+		if (entity != null) {
+			accessed.add(key);
+		}
+		return entity;
+	}
+
+	public void persist(E entity) {
+		String id = entity.getId();
+		if (entities.containsKey(id) || written.contains(id)) {
+			throw new DuplicateKeyException("Item " + id + " already exists");
+		}
+		entities.put(id, vm.initializeObject(entity));
+		accessed.add(id);
+	}
+
+	public void createOrUpdate(I id, Consumer<E> updater) {
+		E entity = load(id);
+		if (entity == null) {
+			entity = vm.newEntity(id.toString());
+			persist(entity);
+		}
+		updater.accept(entity);
+	}
+
+	public void remove(I id) {
+		String key = id.toString();
+		entities.remove(key);
+		accessed.remove(key);
+		if (written.remove(key)) {
+			removed.add(key);
+		}
+	}
+
+	/**
+	 * Write all entities that have been accessed since the last flush. The working set is cleared if it has grown
+	 * beyond its maximum size.
+	 */
+	public void flush() {
+		PersistenceAdapter<E> persistence = vm.getPersistence();
+		if (!removed.isEmpty()) {
+			persistence.delete(new TreeSet<>(removed));
+			removed.clear();
+		}
+
+		List<Object[]> inserts = new ArrayList<>();
+		List<Object[]> updates = new ArrayList<>();
+		for (String id : accessed) {
+			E entity = entities.get(id);
+			entity.beforeFlush();
+			if (written.contains(id)) {
+				vm.incrementVersion(entity);
+				updates.add(vm.getObjectValues(entity));
+			} else {
+				inserts.add(vm.getObjectValues(entity));
+			}
+		}
+		if (!inserts.isEmpty()) {
+			vm.addToIdFilter(inserts);
+			persistence.insert(inserts);
+			inserts.forEach(row -> written.add(row[0].toString()));
+		}
+		if (!updates.isEmpty()) {
+			persistence.updateUnchecked(updates);
+		}
+		accessed.clear();
+
+		if (entities.size() > maxWorkingSetSize) {
+			entities.clear();
+		}
+	}
+
+	/**
+	 * Flush the remaining entities.
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+
+	public int getMaxWorkingSetSize() {
+		return maxWorkingSetSize;
+	}
+
+	/**
+	 * The number of entities kept in memory between flushes.
+	 */
+	public void setMaxWorkingSetSize(int maxWorkingSetSize) {
+		Assert.isTrue(maxWorkingSetSize > 0, "Maximum working set size must be positive");
+		this.maxWorkingSetSize = maxWorkingSetSize;
+	}
+}
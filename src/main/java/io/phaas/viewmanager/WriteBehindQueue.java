@@ -0,0 +1,646 @@
+package io.phaas.viewmanager;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Writes the changes of a view manager to the database in the background, see
+ * {@link AbstractViewManager#setWriteBehindQueue(WriteBehindQueue)}.
+ * <p>
+ * Sessions hand their inserts, updates and deletions to the queue instead of executing them. The changes are checked
+ * against the queued changes while the session is committed, and their ids are reserved until the transaction
+ * completes, so a concurrent transaction that changes the same ids fails. The changes are only queued once the
+ * transaction has committed; the changes of a transaction that is rolled back are discarded. The queue keeps a single
+ * change per id: subsequent changes of the same id are coalesced into one statement. A background thread writes the
+ * queued changes in batches, in a transaction of their own, once the flush interval has passed or a batch is full.
+ * Committing sessions block while the queue is full: the capacity bounds the number of queued and reserved changes. A
+ * transaction only exceeds it if no queued changes are left to wait for, e.g. if it has more changes than the capacity.
+ * <p>
+ * View managers read the queued values of an id before they read the database, so loaded entities are never older
+ * than the queued changes. Queries of the database only see changes that have already been written.
+ * <p>
+ * A batch that fails for a transient reason, e.g. a lost connection, is queued again and retried after the retry
+ * interval. After any other failure, each change of the batch is written on its own, so a single change that can't be
+ * written doesn't discard the other changes of its batch. Changes that can't be written are passed to the
+ * {@link FailureHandler}, which logs them by default.
+ * <p>
+ * The queue should be closed when the application shuts down, which writes all remaining changes, e.g. as the destroy
+ * method of a bean. A shutdown hook closes the queue if it's still open when the JVM exits.
+ *
+ * @author Patrick Haas
+ */
+public class WriteBehindQueue implements Closeable {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	public static final long DEFAULT_RETRY_INTERVAL = 5000;
+
+	/** Returned by {@link #get(String)} for queued deletions */
+	public static final Object[] REMOVED = new Object[0];
+
+	private static final Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+	/**
+	 * Receives the changes that could not be written. Called by the background thread of the queue.
+	 */
+	public interface FailureHandler {
+		/**
+		 * @param values
+		 *            the values of the row, or null if the row should have been deleted
+		 */
+		void failed(String id, Object[] values, RuntimeException cause);
+	}
+
+	private enum Kind {
+		INSERT, UPDATE, DELETE,
+		/** Delete the existing row, then insert a new one */
+		REPLACE
+	}
+
+	private static final class Change {
+		final Kind kind;
+		final Object[] values;
+		/** The version of the row in the database, for updates */
+		final long version;
+
+		Change(Kind kind, Object[] values, long version) {
+			this.kind = kind;
+			this.values = values;
+			this.version = version;
+		}
+	}
+
+	private final PersistenceAdapter<?> persistence;
+	private final TransactionTemplate transactionTemplate;
+	private final int capacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition flushed = lock.newCondition();
+
+	private final Map<String, Change> pending = new LinkedHashMap<>();
+	/** Changes that are being written */
+	private final Map<String, Change> writing = new HashMap<>();
+	/** The transactions that are about to queue changes, by the ids of their changes */
+	private final Map<String, Changes> reserved = new HashMap<>();
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+	private volatile FailureHandler failureHandler;
+	private final AtomicLong failed = new AtomicLong();
+	/** Whether a failed batch has been queued again, which is not retried before retryAt (see System.nanoTime()) */
+	private boolean retrying;
+	private long retryAt;
+
+	private boolean flushRequested;
+	private volatile boolean closed;
+	private final Thread flusher;
+	private final Thread shutdownHook;
+
+	/**
+	 * @param persistence
+	 *            the persistence adapter of the view manager
+	 * @param transactionManager
+	 *            the transaction manager used to write batches
+	 * @param capacity
+	 *            the maximum number of queued ids
+	 */
+	public WriteBehindQueue(PersistenceAdapter<?> persistence, PlatformTransactionManager transactionManager, int capacity) {
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		this.persistence = persistence;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.capacity = capacity;
+		this.failureHandler = (id, values, cause) -> log.error("Could not write " + (values == null ? "deletion" : "change") + " of " + id
+				+ " to " + persistence.getTableName(), cause);
+
+		this.flusher = new Thread(this::run, "write-behind-" + persistence.getTableName());
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+
+		this.shutdownHook = new Thread(this::close, "write-behind-shutdown-" + persistence.getTableName());
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * @return the latest queued values of an id, {@link #REMOVED} if the id has been removed, or null if there are no
+	 *         queued changes
+	 */
+	public Object[] get(String id) {
+		lock.lock();
+		try {
+			Change change = latest(id);
+			if (change == null) {
+				return null;
+			}
+			return change.kind == Kind.DELETE ? REMOVED : change.values.clone();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start collecting the changes of a transaction, which are queued when the transaction has committed.
+	 */
+	Changes begin() {
+		return new Changes();
+	}
+
+	/**
+	 * The changes of a single transaction, coalesced by id like the queued changes.
+	 */
+	final class Changes {
+
+		private final Map<String, Change> changes = new LinkedHashMap<>();
+
+		private Changes() {
+		}
+
+		void insert(List<Object[]> rows) {
+			lock.lock();
+			try {
+				awaitCapacity(ids(rows));
+				for (Object[] values : rows) {
+					String id = values[0].toString();
+					Change latest = latest(id);
+					if (latest != null && latest.kind != Kind.DELETE) {
+						throw new DuplicateKeyException("Item " + id + " already exists");
+					}
+				}
+				for (Object[] values : rows) {
+					add(values[0].toString(), new Change(Kind.INSERT, values, 0));
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @param versions
+		 *            the versions of the rows that have been updated. The queued versions must match.
+		 */
+		void update(List<Object[]> rows, long[] versions) {
+			lock.lock();
+			try {
+				awaitCapacity(ids(rows));
+				for (int i = 0; i < rows.size(); i++) {
+					Change latest = latest(rows.get(i)[0].toString());
+					if (latest != null
+							&& (latest.kind == Kind.DELETE || ((Number) latest.values[ViewCache.VERSION]).longValue() != versions[i])) {
+						throw new OptimisticLockingFailureException("Item " + rows.get(i)[0] + " was modified concurrently");
+					}
+				}
+				for (int i = 0; i < rows.size(); i++) {
+					Object[] values = rows.get(i);
+					add(values[0].toString(), new Change(Kind.UPDATE, values, versions[i]));
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void delete(Collection<String> ids) {
+			lock.lock();
+			try {
+				awaitCapacity(ids);
+				ids.forEach(this::latest);
+				for (String id : ids) {
+					add(id, new Change(Kind.DELETE, null, 0));
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Queue the changes if the transaction has committed, and release their ids.
+		 */
+		void complete(boolean committed) {
+			lock.lock();
+			try {
+				for (Map.Entry<String, Change> change : changes.entrySet()) {
+					if (committed && change.getValue() != null) {
+						queue(change.getKey(), change.getValue());
+					}
+					reserved.remove(change.getKey());
+				}
+				changes.clear();
+				notEmpty.signal();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return the latest change of an id, as seen by this transaction
+		 */
+		private Change latest(String id) {
+			Changes owner = reserved.get(id);
+			if (owner != null && owner != this) {
+				throw new OptimisticLockingFailureException("Item " + id + " is being modified by another transaction");
+			}
+			Change change = changes.get(id);
+			return change != null ? change : WriteBehindQueue.this.latest(id);
+		}
+
+		/**
+		 * Wait until the changes of the ids fit into the queue, in addition to the changes that are queued or reserved.
+		 * Only queued changes are waited for, as they are written regardless of other transactions.
+		 */
+		private void awaitCapacity(Collection<String> ids) {
+			Set<String> added = new HashSet<>(ids);
+			added.removeAll(changes.keySet());
+			while (pending.size() + reserved.size() + added.size() > capacity && !pending.isEmpty() && !closed) {
+				notFull.awaitUninterruptibly();
+			}
+			if (closed) {
+				throw new IllegalStateException("Write-behind queue of " + persistence.getTableName() + " has been closed");
+			}
+		}
+
+		private void add(String id, Change change) {
+			reserved.put(id, this);
+			// The id remains reserved, even if nothing is left to write
+			changes.put(id, coalesce(changes.get(id), change));
+		}
+	}
+
+	/**
+	 * Write all queued changes and wait until they have been written.
+	 */
+	public void flush() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!pending.isEmpty() || !writing.isEmpty()) {
+				// Changes may have been queued after a previous flush request had completed
+				flushRequested = true;
+				notEmpty.signal();
+				flushed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting changes, write all queued changes and stop the background thread. Transactions that have already
+	 * reserved their changes may still queue them.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signal();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// The JVM is shutting down already
+			}
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of changes that could not be written
+	 */
+	public long getFailedChanges() {
+		return failed.get();
+	}
+
+	public FailureHandler getFailureHandler() {
+		return failureHandler;
+	}
+
+	/**
+	 * Handle the changes that could not be written, e.g. to store them elsewhere. By default, they are logged.
+	 */
+	public void setFailureHandler(FailureHandler failureHandler) {
+		Assert.notNull(failureHandler, "Failure handler must not be null");
+		this.failureHandler = failureHandler;
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * The time (in milliseconds) before a batch that has failed for a transient reason is retried.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		Assert.isTrue(retryInterval >= 0, "Retry interval must not be negative");
+		this.retryInterval = retryInterval;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * The time (in milliseconds) that changes are queued before they are written, unless a batch is full.
+	 */
+	public void setFlushInterval(long flushInterval) {
+		Assert.isTrue(flushInterval >= 0, "Flush interval must not be negative");
+		this.flushInterval = flushInterval;
+	}
+
+	private Change latest(String id) {
+		Change change = pending.get(id);
+		return change != null ? change : writing.get(id);
+	}
+
+	private void queue(String id, Change change) {
+		Change coalesced = coalesce(pending.get(id), change);
+		if (coalesced == null) {
+			pending.remove(id);
+		} else {
+			pending.put(id, coalesced);
+		}
+	}
+
+	/**
+	 * Combine the current change of an id with a subsequent change, which must be valid given the current change.
+	 * 
+	 * @return the combined change, or null if there is nothing left to write
+	 */
+	private static Change coalesce(Change current, Change change) {
+		if (current == null) {
+			return change;
+		}
+		switch (change.kind) {
+		case INSERT:
+			// A deletion is replaced, unless it is being written already
+			return new Change(Kind.REPLACE, change.values, 0);
+		case UPDATE:
+			return new Change(current.kind, change.values, current.version);
+		case DELETE:
+			// A row that has never been written is not deleted
+			return current.kind == Kind.INSERT ? null : change;
+		default:
+			return new Change(current.kind == Kind.INSERT ? Kind.INSERT : Kind.REPLACE, change.values, 0);
+		}
+	}
+
+	private static List<String> ids(List<Object[]> rows) {
+		List<String> ids = new ArrayList<>(rows.size());
+		for (Object[] values : rows) {
+			ids.add(values[0].toString());
+		}
+		return ids;
+	}
+
+	private void run() {
+		while (true) {
+			lock.lock();
+			try {
+				awaitBatch();
+				if (pending.isEmpty()) {
+					flushRequested = false;
+					flushed.signalAll();
+					if (closed) {
+						if (reserved.isEmpty()) {
+							return;
+						}
+						// Transactions that have reserved changes may still queue them
+						notEmpty.awaitUninterruptibly();
+					}
+					continue;
+				}
+				Iterator<Map.Entry<String, Change>> it = pending.entrySet().iterator();
+				for (int i = 0; i < batchSize && it.hasNext(); i++) {
+					Map.Entry<String, Change> entry = it.next();
+					writing.put(entry.getKey(), entry.getValue());
+					it.remove();
+				}
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			RuntimeException failure = tryWrite(writing);
+			if (failure != null && retry(failure)) {
+				log.warn("Could not write " + writing.size() + " changes to " + persistence.getTableName() + ", retrying", failure);
+				requeue(writing);
+			} else if (failure != null && writing.size() == 1) {
+				writing.forEach((id, change) -> failed(id, change, failure));
+			} else if (failure != null) {
+				// Isolate the changes that can't be written
+				for (Map.Entry<String, Change> change : writing.entrySet()) {
+					Map<String, Change> single = Collections.singletonMap(change.getKey(), change.getValue());
+					RuntimeException e = tryWrite(single);
+					if (e != null && retry(e)) {
+						requeue(single);
+					} else if (e != null) {
+						failed(change.getKey(), change.getValue(), e);
+					}
+				}
+			}
+
+			lock.lock();
+			try {
+				writing.clear();
+				if (pending.isEmpty()) {
+					flushRequested = false;
+					flushed.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the failure, or null if the changes have been written
+	 */
+	private RuntimeException tryWrite(Map<String, Change> changes) {
+		try {
+			transactionTemplate.execute(status -> {
+				write(changes);
+				return null;
+			});
+			return null;
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * @return whether changes that failed are retried, which is the case for transient failures until the queue is
+	 *         closed. Optimistic locking failures are not transient, as the versions of the queued changes never change.
+	 */
+	private boolean retry(RuntimeException failure) {
+		if (closed || failure instanceof OptimisticLockingFailureException) {
+			return false;
+		}
+		return failure instanceof TransientDataAccessException || failure instanceof RecoverableDataAccessException
+				|| failure instanceof CannotCreateTransactionException;
+	}
+
+	/**
+	 * Queue changes that have failed again, in front of the changes that have been queued since.
+	 */
+	private void requeue(Map<String, Change> changes) {
+		lock.lock();
+		try {
+			Map<String, Change> requeued = new LinkedHashMap<>(changes);
+			pending.forEach((id, change) -> {
+				Change coalesced = coalesce(requeued.get(id), change);
+				if (coalesced == null) {
+					requeued.remove(id);
+				} else {
+					requeued.put(id, coalesced);
+				}
+			});
+			pending.clear();
+			pending.putAll(requeued);
+			retrying = true;
+			retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void failed(String id, Change change, RuntimeException cause) {
+		failed.incrementAndGet();
+		try {
+			failureHandler.failed(id, change.values, cause);
+		} catch (RuntimeException e) {
+			log.error("Failure handler of " + persistence.getTableName() + " failed", e);
+		}
+	}
+
+	/**
+	 * Wait until a batch should be written.
+	 */
+	private void awaitBatch() {
+		try {
+			// Failed batches are retried after the retry interval, regardless of flushes
+			long remaining;
+			while (retrying && !closed && (remaining = retryAt - System.nanoTime()) > 0) {
+				notEmpty.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+		retrying = false;
+
+		long deadline = 0;
+		while (!closed && !flushRequested && pending.size() < batchSize) {
+			try {
+				if (pending.isEmpty()) {
+					deadline = 0;
+					notEmpty.await();
+				} else {
+					if (deadline == 0) {
+						deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					notEmpty.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				// Write all remaining changes before the thread terminates
+				closed = true;
+			}
+		}
+	}
+
+	private void write(Map<String, Change> changes) {
+		// Statements are executed in the order of ids, like the statements of sessions
+		TreeSet<String> deleted = new TreeSet<>();
+		TreeMap<String, Object[]> inserted = new TreeMap<>();
+		TreeMap<String, Change> updated = new TreeMap<>();
+		changes.forEach((id, change) -> {
+			switch (change.kind) {
+			case REPLACE:
+				deleted.add(id);
+				inserted.put(id, change.values);
+				break;
+			case INSERT:
+				inserted.put(id, change.values);
+				break;
+			case UPDATE:
+				updated.put(id, change);
+				break;
+			case DELETE:
+				deleted.add(id);
+				break;
+			}
+		});
+
+		if (!deleted.isEmpty()) {
+			persistence.delete(deleted);
+		}
+		if (!inserted.isEmpty()) {
+			persistence.insert(new ArrayList<>(inserted.values()));
+		}
+		if (!updated.isEmpty()) {
+			List<Object[]> rows = new ArrayList<>(updated.size());
+			long[] versions = new long[updated.size()];
+			for (Change change : updated.values()) {
+				versions[rows.size()] = change.version;
+				rows.add(change.values);
+			}
+			persistence.update(rows, versions);
+		}
+	}
+}
@@ -28,6 +28,7 @@ public class TestEntity extends ViewEntity<TestObject> {
 	}
 
 	public void setKey(String key) {
+		modified();
 		this.key = key;
 	}
 
@@ -36,6 +37,14 @@ public class TestEntity extends ViewEntity<TestObject> {
 	}
 
 	public void setOtherKey(String otherKey) {
+		modified();
+		this.otherKey = otherKey;
+	}
+
+	/**
+	 * A setter that doesn't report the modification, see {@link TestViewManager#setDetectUnreportedModifications(boolean)}.
+	 */
+	void setOtherKeyUnreported(String otherKey) {
 		this.otherKey = otherKey;
 	}
 
@@ -49,6 +58,7 @@ public class TestEntity extends ViewEntity<TestObject> {
 	}
 
 	public void setGroupId(String groupId) {
+		modified();
 		this.groupId = groupId;
 	}
 
@@ -0,0 +1,73 @@
+package io.phaas.viewmanager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts all measurements, regardless of their view.
+ */
+public class TestMetrics implements ViewManagerMetrics {
+
+	public final AtomicInteger sessionHits = new AtomicInteger();
+	public final AtomicInteger sessionMisses = new AtomicInteger();
+	public final AtomicInteger loads = new AtomicInteger();
+	public final AtomicInteger loaded = new AtomicInteger();
+	public final AtomicInteger found = new AtomicInteger();
+	public final AtomicInteger serializations = new AtomicInteger();
+	public final AtomicLong serializedBytes = new AtomicLong();
+	public final AtomicInteger flushes = new AtomicInteger();
+	public final AtomicInteger batches = new AtomicInteger();
+	public final AtomicInteger batchedRows = new AtomicInteger();
+	public final AtomicInteger optimisticLockFailures = new AtomicInteger();
+	public final AtomicInteger projectedBatches = new AtomicInteger();
+	public final AtomicInteger projectedTasks = new AtomicInteger();
+
+	@Override
+	public void sessionHit(String view) {
+		sessionHits.incrementAndGet();
+	}
+
+	@Override
+	public void sessionMiss(String view) {
+		sessionMisses.incrementAndGet();
+	}
+
+	@Override
+	public void loaded(String view, int rows) {
+		loads.incrementAndGet();
+		loaded.addAndGet(rows);
+	}
+
+	@Override
+	public void found(String view, int rows) {
+		found.addAndGet(rows);
+	}
+
+	@Override
+	public void serialized(String view, int bytes) {
+		serializations.incrementAndGet();
+		serializedBytes.addAndGet(bytes);
+	}
+
+	@Override
+	public void flushed(String view, long serializeNanos, long executeNanos) {
+		flushes.incrementAndGet();
+	}
+
+	@Override
+	public void batchExecuted(String view, int rows) {
+		batches.incrementAndGet();
+		batchedRows.addAndGet(rows);
+	}
+
+	@Override
+	public void optimisticLockFailure(String view) {
+		optimisticLockFailures.incrementAndGet();
+	}
+
+	@Override
+	public void projected(String view, int tasks, long lagNanos, long executeNanos) {
+		projectedBatches.incrementAndGet();
+		projectedTasks.addAndGet(tasks);
+	}
+}
@@ -2,10 +2,14 @@ package io.phaas.viewmanager;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 import javax.sql.DataSource;
 
+import io.phaas.viewmanager.model.TestObject;
+
 import org.springframework.jdbc.core.RowMapper;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -13,34 +17,45 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public class TestViewManager extends AbstractViewManager<TestEntity, String, TestViewManager.TestEntityJdbcAdapter> {
 
 	protected static final class TestEntityJdbcAdapter extends JdbcPersistenceAdapter<TestEntity> {
-		private static final String jdbcSelectByGroupId = "SELECT id, version, serialized_data, item_id, key, other_key "
-				+ "FROM test.test_view_entity WHERE item_id = ?";
-
-		protected TestEntityJdbcAdapter(DataSource dataSource) {
-			super(dataSource, ROW_MAPPER, "TEST.TEST_VIEW_ENTITY", "ID", "VERSION", "SERIALIZED_DATA", "ITEM_ID", "KEY", "OTHER_KEY");
+		protected TestEntityJdbcAdapter(DataSource dataSource, String tableName) {
+			super(dataSource, ROW_MAPPER, tableName, "ID", "VERSION", "SERIALIZED_DATA", "ITEM_ID", "KEY", "OTHER_KEY");
 		}
 
-		public List<TestEntity> findByGroupId(String groupId) {
-			return getJdbc().query(jdbcSelectByGroupId, ROW_MAPPER, groupId);
+		@Override
+		protected TestEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
+			TestEntity testEntity = mapAttributes(rs);
+			readSerializedData(rs, "SERIALIZED_DATA", testEntity);
+			return testEntity;
 		}
 	}
 
 	protected static final RowMapper<TestEntity> ROW_MAPPER = new RowMapper<TestEntity>() {
 		@Override
 		public TestEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
-			TestEntity testEntity = new TestEntity();
-			testEntity.setId(rs.getString("ID"));
-			testEntity.setVersion(rs.getLong("VERSION"));
-			testEntity.setGroupId(rs.getString("ITEM_ID"));
-			testEntity.setKey(rs.getString("KEY"));
-			testEntity.setOtherKey(rs.getString("OTHER_KEY"));
+			TestEntity testEntity = mapAttributes(rs);
 			testEntity.setSerializedData(rs.getBytes("SERIALIZED_DATA"));
 			return testEntity;
 		}
 	};
 
+	private static TestEntity mapAttributes(ResultSet rs) throws SQLException {
+		TestEntity testEntity = new TestEntity();
+		testEntity.setId(rs.getString("ID"));
+		testEntity.setVersion(rs.getLong("VERSION"));
+		testEntity.setGroupId(rs.getString("ITEM_ID"));
+		testEntity.setKey(rs.getString("KEY"));
+		testEntity.setOtherKey(rs.getString("OTHER_KEY"));
+		return testEntity;
+	}
+
 	public TestViewManager(DataSource dataSource, ObjectMapper objectMapper) {
-		super(objectMapper, new TestEntityJdbcAdapter(dataSource));
+		this(dataSource, objectMapper, "TEST.TEST_VIEW_ENTITY");
+	}
+
+	public TestViewManager(DataSource dataSource, ObjectMapper objectMapper, String tableName) {
+		super(objectMapper, new TestEntityJdbcAdapter(dataSource, tableName));
+		addIndex("ITEM_ID");
+		addIndex("KEY");
 	}
 
 	@Override
@@ -49,18 +64,51 @@ public class TestViewManager extends AbstractViewManager<TestEntity, String, Tes
 	}
 
 	public List<TestEntity> findByGroupId(String groupId) {
-		List<TestEntity> dbResults = getPersistence().findByGroupId(groupId);
-		return mergeObjectsWithSession(dbResults, e -> groupId.equals(e.getGroupId()));
+		return findBy("ITEM_ID", groupId);
+	}
+
+	public List<TestEntity> findByGroupIdAndKey(String groupId, String key) {
+		return findBy(new String[] { "ITEM_ID", "KEY" }, new Object[] { groupId, key });
+	}
+
+	/**
+	 * Stream all entities of a group. The stream must be closed.
+	 */
+	public Stream<TestEntity> streamByGroupId(String groupId, boolean attach) {
+		return streamWithSession(getPersistence().streamWhere("ITEM_ID", groupId), "ITEM_ID", groupId, attach);
+	}
+
+	public List<TestEntity> findByGroupIds(Collection<String> groupIds) {
+		return findByIn("ITEM_ID", groupIds);
+	}
+
+	public List<TestEntity> findByKeys(Collection<String> keys) {
+		return findByIn("KEY", keys);
 	}
 
 	@Override
-	protected void incrementVersion(TestEntity entity) {
-		entity.setVersion(entity.getVersion() + 1);
+	protected TestEntity restoreEntity(Object[] values) {
+		TestEntity testEntity = new TestEntity();
+		testEntity.setId((String) values[0]);
+		testEntity.setVersion((Long) values[1]);
+		testEntity.setSerializedData((byte[]) values[2]);
+		testEntity.setGroupId((String) values[3]);
+		testEntity.setKey((String) values[4]);
+		testEntity.setOtherKey((String) values[5]);
+		return testEntity;
 	}
 
 	@Override
-	protected boolean isModified(TestEntity entity) {
-		return true;
+	protected TestEntity newEntity(String id) {
+		TestEntity entity = new TestEntity();
+		entity.setId(id);
+		entity.setObject(new TestObject());
+		return entity;
+	}
+
+	@Override
+	protected void incrementVersion(TestEntity entity) {
+		entity.setVersion(entity.getVersion() + 1);
 	}
 
 }
@@ -1,8 +1,17 @@
 package io.phaas.viewmanager;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -10,24 +19,52 @@ import static org.junit.Assert.fail;
 import io.phaas.viewmanager.configuration.TestConfiguration;
 import io.phaas.viewmanager.model.TestObject;
 
+import java.io.ByteArrayInputStream;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(classes = { TestConfiguration.class })
 public class ViewManagerTest {
@@ -44,9 +81,18 @@ public class ViewManagerTest {
 	@Resource
 	private TransactionTemplate tx;
 
+	@Resource
+	private DataSource dataSource;
+
+	@Resource
+	private ObjectMapper objectMapper;
+
+	private final TestMetrics metrics = new TestMetrics();
+
 	@Before
 	public void cleanup() {
 		vm.deleteAll();
+		vm.setMetrics(metrics);
 	}
 
 	@Test
@@ -88,6 +134,239 @@ public class ViewManagerTest {
 		assertEquals(1, result.read().count);
 	}
 
+	@Test
+	public void testUpdateModifiedColumnsOnly() throws Exception {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID", new TestObject("GroupID", "Key", "OtherKey")));
+			return null;
+		});
+
+		TestObject concurrent = new TestObject("GroupID", "Key", "OtherKey");
+		concurrent.count = 42;
+		byte[] data = objectMapper.writeValueAsBytes(concurrent);
+		tx.execute(t -> {
+			vm.require("ID").setKey("NewKey");
+			// Only the KEY column is updated, the serialized data is not written
+			new JdbcTemplate(dataSource).update("UPDATE TEST.TEST_VIEW_ENTITY SET SERIALIZED_DATA = ? WHERE ID = 'ID'", data);
+			return null;
+		});
+
+		TestEntity result = tx.execute(t -> vm.require("ID"));
+		assertEquals("NewKey", result.getKey());
+		assertEquals(42, result.read().count);
+		assertEquals(1, result.getVersion());
+
+		tx.execute(t -> {
+			vm.require("ID").write().count = 1;
+			return null;
+		});
+		result = tx.execute(t -> vm.require("ID"));
+		assertEquals("NewKey", result.getKey());
+		assertEquals(1, result.read().count);
+		assertEquals(2, result.getVersion());
+	}
+
+	@Test
+	public void testUpdateUnreportedModification() throws Exception {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID", new TestObject("GroupID", "Key", "OtherKey")));
+			return null;
+		});
+
+		TestObject concurrent = new TestObject("GroupID", "Key", "OtherKey");
+		concurrent.count = 42;
+		byte[] data = objectMapper.writeValueAsBytes(concurrent);
+		// Without detection, the unreported modification is lost
+		tx.execute(t -> {
+			vm.require("ID").setOtherKeyUnreported("Lost");
+			return null;
+		});
+		assertEquals("OtherKey", tx.execute(t -> vm.require("ID")).getOtherKey());
+
+		vm.setDetectUnreportedModifications(true);
+		try {
+			int serializations = metrics.serializations.get();
+			tx.execute(t -> {
+				// The modification is found by comparing the attributes
+				TestEntity entity = vm.require("ID");
+				entity.read();
+				entity.setOtherKeyUnreported("NewOtherKey");
+				new JdbcTemplate(dataSource).update("UPDATE TEST.TEST_VIEW_ENTITY SET SERIALIZED_DATA = ? WHERE ID = 'ID'", data);
+				return null;
+			});
+			assertEquals(serializations, metrics.serializations.get());
+		} finally {
+			vm.setDetectUnreportedModifications(false);
+		}
+
+		TestEntity result = tx.execute(t -> vm.require("ID"));
+		assertEquals("NewOtherKey", result.getOtherKey());
+		assertEquals(42, result.read().count);
+		assertEquals(1, result.getVersion());
+	}
+
+	@Test
+	public void testReadOnlyAccessDoesNotUpdate() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		int serializations = metrics.serializations.get();
+		tx.execute(t -> {
+			TestEntity entity = vm.require("ID1");
+			entity.read();
+			entity.generateRawJsonString();
+			vm.findByGroupId("GroupID");
+			return null;
+		});
+		assertEquals(serializations, metrics.serializations.get());
+
+		tx.execute(t -> {
+			// modified, but unchanged
+			vm.require("ID1").write().count = 0;
+			return null;
+		});
+		assertEquals(0, tx.execute(t -> vm.require("ID1")).getVersion());
+	}
+
+	@Test
+	public void testReadOnlyTransaction() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID", new TestObject("GroupID", "Key", "OtherKey")));
+			return null;
+		});
+
+		TransactionTemplate readOnly = new TransactionTemplate(tm);
+		readOnly.setReadOnly(true);
+		readOnly.execute(t -> {
+			TestEntity entity = vm.require("ID");
+			assertSame(entity, vm.require("ID"));
+			assertThat(vm.findByGroupId("GroupID"), hasItem(entity));
+			try (Stream<TestEntity> stream = vm.streamByGroupId("GroupID", true)) {
+				assertThat(stream.collect(Collectors.toList()), contains(entity));
+			}
+			assertEquals("Key", entity.read().key);
+
+			try {
+				entity.write();
+				fail("Entities must not be modified in a read-only transaction");
+			} catch (ReadOnlySessionException e) {
+			}
+			try {
+				vm.persist(new TestEntity("ID2", new TestObject("GroupID", "Key", "OtherKey")));
+				fail("Entities must not be persisted in a read-only transaction");
+			} catch (ReadOnlySessionException e) {
+			}
+			try {
+				vm.remove("ID");
+				fail("Entities must not be removed in a read-only transaction");
+			} catch (ReadOnlySessionException e) {
+			}
+			return null;
+		});
+
+		// The unit of work of the read-only transaction must not leak into the next transaction
+		tx.execute(t -> {
+			vm.require("ID").write().count = 1;
+			return null;
+		});
+		assertEquals(1, (int) tx.execute(t -> vm.require("ID").read().count));
+	}
+
+	@Test
+	public void testPartialRead() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID", new TestObject("GroupID", "Key", "OtherKey")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity entity = vm.require("ID");
+			assertEquals("Key", entity.readPath(JsonPointer.compile("/key"), String.class));
+			assertNull(entity.readPath(JsonPointer.compile("/missing")));
+
+			Map<String, JsonNode> fields = entity.readFields("otherKey", "count", "missing");
+			assertEquals(2, fields.size());
+			assertEquals("OtherKey", fields.get("otherKey").asText());
+			assertEquals(0, fields.get("count").asInt());
+
+			// Modifications that haven't been serialized yet are visible
+			entity.write().count = 2;
+			assertEquals(2, (int) entity.readPath(JsonPointer.compile("/count"), Integer.class));
+			assertEquals(2, entity.readFields("count").get("count").asInt());
+			return null;
+		});
+	}
+
+	@Test
+	public void testMetrics() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+		assertEquals(1, metrics.flushes.get());
+		assertEquals(2, metrics.serializations.get());
+		assertTrue(metrics.serializedBytes.get() > 0);
+		assertEquals(1, metrics.batches.get());
+		assertEquals(2, metrics.batchedRows.get());
+
+		tx.execute(t -> {
+			vm.require("ID1").write().count = 1;
+			vm.require("ID1");
+			assertNull(vm.load("ID3"));
+			vm.findByGroupId("GroupID");
+			return null;
+		});
+		assertEquals(1, metrics.sessionHits.get());
+		assertEquals(2, metrics.sessionMisses.get());
+		assertEquals(1, metrics.loaded.get());
+		assertEquals(2, metrics.found.get());
+		assertEquals(2, metrics.flushes.get());
+
+		TestEntity stale = tx.execute(t -> vm.require("ID2"));
+		tx.execute(t -> {
+			vm.require("ID2").write().count = 1;
+			return null;
+		});
+		try {
+			tx.execute(t -> {
+				vm.getPersistence().update(Arrays.<Object[]> asList(vm.getObjectValues(stale)), new long[] { 0 });
+				return null;
+			});
+			fail("Expected an optimistic lock failure");
+		} catch (OptimisticLockingFailureException e) {
+			assertEquals(1, metrics.optimisticLockFailures.get());
+		}
+	}
+
+	@Test
+	public void testSerializeOnce() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity entity = vm.require("ID1");
+			TestObject object = entity.write();
+			object.count = 1;
+
+			int serializations = metrics.serializations.get();
+			entity.getSerializedData();
+			entity.generateRawJsonString();
+			assertEquals(serializations + 1, metrics.serializations.get());
+
+			// Modified through an earlier reference, after serialization
+			object.count = 2;
+			return null;
+		});
+		TestEntity result = tx.execute(t -> vm.require("ID1"));
+		assertEquals(2, result.read().count);
+		assertEquals(1, result.getVersion());
+	}
+
 	@Test
 	public void testDelete() {
 		TestEntity entity = new TestEntity("ID", new TestObject("GroupID", "Key", "OtherKey"));
@@ -112,6 +391,111 @@ public class ViewManagerTest {
 		}
 	}
 
+	@Test
+	public void testDeleteInChunks() {
+		vm.getPersistence().setMaxInClauseSize(4);
+		try {
+			tx.execute(t -> {
+				for (int i = 0; i < 11; i++) {
+					vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "Key", "OtherKey")));
+				}
+				return null;
+			});
+
+			tx.execute(t -> {
+				for (int i = 0; i < 10; i++) {
+					vm.remove("ID" + i);
+				}
+				return null;
+			});
+			assertThat(tx.execute(t -> vm.findByGroupId("GroupID")), contains(hasProperty("id", equalTo("ID10"))));
+
+			try {
+				tx.execute(t -> {
+					vm.remove("ID10");
+					new JdbcTemplate(dataSource).update("DELETE FROM TEST.TEST_VIEW_ENTITY WHERE ID = 'ID10'");
+					return null;
+				});
+				fail("OptimisticLockingFailureException expected");
+			} catch (OptimisticLockingFailureException e) {
+				/* expected */
+			}
+		} finally {
+			vm.getPersistence().setMaxInClauseSize(JdbcPersistenceAdapter.DEFAULT_MAX_IN_CLAUSE_SIZE);
+		}
+	}
+
+	@Test
+	public void testDeleteInChunksWithoutUpdateCounts() {
+		// A driver that doesn't report the update counts of chunks with 4 ids
+		JdbcPersistenceAdapter<TestEntity> persistence = new JdbcPersistenceAdapter<TestEntity>(dataSource, TestViewManager.ROW_MAPPER,
+				"TEST.TEST_VIEW_ENTITY", "ID", "VERSION", "SERIALIZED_DATA", "ITEM_ID", "KEY", "OTHER_KEY") {
+			@Override
+			protected int[] executeBatch(String sql, List<Object[]> rows, RowSetter setter) {
+				int[] counts = super.executeBatch(sql, rows, setter);
+				if (rows.get(0).length == 4) {
+					Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+				}
+				return counts;
+			}
+		};
+		persistence.setMaxInClauseSize(4);
+
+		tx.execute(t -> {
+			for (int i = 0; i < 5; i++) {
+				vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "Key", "OtherKey")));
+			}
+			return null;
+		});
+
+		// Chunks of 4 ids and 1 id. The deletions can't be verified, so the transaction fails
+		try {
+			tx.execute(t -> {
+				persistence.delete(new HashSet<>(Arrays.asList("ID0", "ID1", "ID2", "ID3", "ID4")));
+				return null;
+			});
+			fail("Expected transient failure");
+		} catch (TransientDataAccessResourceException e) {
+		}
+		assertFalse(persistence.isBatchUpdateCounts());
+		assertThat(tx.execute(t -> vm.findByGroupId("GroupID")), hasSize(5));
+
+		// Retried one by one, which verifies each deletion
+		tx.execute(t -> {
+			persistence.delete(new HashSet<>(Arrays.asList("ID0", "ID1", "ID2", "ID3")));
+			return null;
+		});
+		assertThat(tx.execute(t -> vm.findByGroupId("GroupID")), hasSize(1));
+		try {
+			tx.execute(t -> {
+				persistence.delete(new HashSet<>(Arrays.asList("ID0", "ID1", "ID2", "ID4")));
+				return null;
+			});
+			fail("Expected optimistic locking failure");
+		} catch (OptimisticLockingFailureException e) {
+		}
+		assertThat(tx.execute(t -> vm.findByGroupId("GroupID")), hasSize(1));
+	}
+
+	@Test
+	public void testRemoveAndPersistInSameTransaction() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			vm.remove("ID1");
+			return null;
+		});
+
+		tx.execute(t -> {
+			vm.remove("ID2");
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "BLUE", "Color")));
+			return null;
+		});
+
+		assertNull(tx.execute(t -> vm.load("ID1")));
+		assertEquals("BLUE", tx.execute(t -> vm.require("ID2")).read().key);
+	}
+
 	@Test
 	public void testFindByGroupId() {
 		tx.execute(t -> {
@@ -178,6 +562,64 @@ public class ViewManagerTest {
 		});
 	}
 
+	@Test
+	public void testSessionIndexTracksChanges() {
+		tx.execute(t -> {
+			TestEntity added = new TestEntity("ID1", new TestObject("Group1", "RED", "Color"));
+			vm.persist(added);
+			vm.persist(new TestEntity("ID2", new TestObject("Group1", "BLUE", "Color")));
+			assertThat(vm.findByGroupId("Group1"), hasSize(2));
+
+			added.setGroupId("Group2");
+			assertThat(vm.findByGroupId("Group1"), hasSize(1));
+			assertThat(vm.findByGroupId("Group2"), hasItem(added));
+
+			vm.remove("ID2");
+			assertThat(vm.findByGroupId("Group1"), hasSize(0));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity loaded = vm.require("ID1");
+			loaded.setGroupId("Group3");
+			assertThat(vm.findByGroupId("Group2"), hasSize(0));
+			assertThat(vm.findByGroupIds(Arrays.asList("Group2", "Group3")), hasItem(loaded));
+			return null;
+		});
+	}
+
+	@Test
+	public void testStreamDetached() {
+		tx.execute(t -> {
+			for (int i = 1; i <= 5; i++) {
+				vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+			}
+			return null;
+		});
+
+		vm.getPersistence().setFetchSize(2);
+		try {
+			tx.execute(t -> {
+				TestEntity id1 = vm.require("ID1");
+				id1.write().count = 1;
+				vm.require("ID2").setGroupId("Group2");
+				vm.remove("ID3");
+				vm.persist(new TestEntity("ID6", new TestObject("GroupID", "RED", "Color")));
+
+				try (Stream<TestEntity> stream = vm.streamByGroupId("GroupID", false)) {
+					List<TestEntity> result = stream.collect(Collectors.toList());
+					assertEquals(Arrays.asList("ID1", "ID4", "ID5", "ID6"),
+							result.stream().map(e -> e.getId()).sorted().collect(Collectors.toList()));
+					assertThat(result, hasItem(id1));
+					assertTrue(result.stream().noneMatch(e -> e == vm.load("ID4")));
+				}
+				return null;
+			});
+		} finally {
+			vm.getPersistence().setFetchSize(JdbcPersistenceAdapter.DEFAULT_FETCH_SIZE);
+		}
+	}
+
 	@Test
 	public void testUpdateEntitiesFoundByGroupId() {
 		tx.execute(t -> {
@@ -209,6 +651,1056 @@ public class ViewManagerTest {
 		});
 	}
 
+	@Test
+	public void testBatchedInsertAndUpdate() {
+		vm.getPersistence().setBatchSize(10);
+		vm.getPersistence().setMaxBatchBytes(512);
+		try {
+			tx.execute(t -> {
+				for (int i = 0; i < 25; i++) {
+					vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+				}
+				return null;
+			});
+
+			tx.execute(t -> {
+				vm.findByGroupId("GroupID").forEach(item -> item.write().count = 7);
+				return null;
+			});
+
+			List<TestEntity> result = tx.execute(t -> {
+				return vm.findByGroupId("GroupID");
+			});
+			assertThat(result, hasSize(25));
+			result.forEach(item -> {
+				assertEquals(7, item.read().count);
+				assertEquals(1, item.getVersion());
+			});
+		} finally {
+			vm.getPersistence().setBatchSize(JdbcPersistenceAdapter.DEFAULT_BATCH_SIZE);
+			vm.getPersistence().setMaxBatchBytes(JdbcPersistenceAdapter.DEFAULT_MAX_BATCH_BYTES);
+		}
+	}
+
+	@Test
+	public void testBatchedUpdateWithStaleVersion() {
+		tx.execute(t -> {
+			for (int i = 0; i < 5; i++) {
+				vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+			}
+			return null;
+		});
+
+		try {
+			tx.execute(t -> {
+				vm.findByGroupId("GroupID").forEach(item -> item.write().count = 7);
+				new JdbcTemplate(dataSource).update("UPDATE TEST.TEST_VIEW_ENTITY SET VERSION = VERSION + 1 WHERE ID = 'ID2'");
+				return null;
+			});
+			fail("OptimisticLockingFailureException expected");
+		} catch (OptimisticLockingFailureException e) {
+			assertTrue(e.getMessage().contains("ID2"));
+		}
+		tx.execute(t -> vm.findByGroupId("GroupID")).forEach(item -> assertEquals(0, item.read().count));
+	}
+
+	@Test
+	public void testParallelSerialization() {
+		AtomicInteger tasks = new AtomicInteger();
+		TestViewManager parallel = new TestViewManager(dataSource, objectMapper);
+		parallel.setSerializationExecutor(task -> {
+			tasks.incrementAndGet();
+			ForkJoinPool.commonPool().execute(task);
+		});
+		parallel.setSerializationBatchSize(10);
+
+		tx.execute(t -> {
+			for (int i = 0; i < 25; i++) {
+				parallel.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+			}
+			return null;
+		});
+		assertEquals(3, tasks.get());
+
+		tx.execute(t -> {
+			parallel.findByGroupId("GroupID").forEach(item -> item.write().count = 7);
+			for (int i = 20; i < 35; i++) {
+				parallel.createOrUpdate("ID" + i, item -> {
+					item.setGroupId("GroupID");
+					item.write().count++;
+				});
+			}
+			return null;
+		});
+
+		List<TestEntity> result = tx.execute(t -> parallel.findByGroupId("GroupID"));
+		assertThat(result, hasSize(35));
+		result.forEach(item -> {
+			int index = Integer.parseInt(item.getId().substring(2));
+			assertEquals(index < 20 ? 7 : index < 25 ? 8 : 1, item.read().count);
+		});
+	}
+
+	@Test
+	public void testConcurrentSession() throws Exception {
+		TestViewManager concurrent = new TestViewManager(dataSource, objectMapper);
+		concurrent.setConcurrentSessions(true);
+		tx.execute(t -> {
+			for (int i = 0; i < 40; i++) {
+				concurrent.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+			}
+			return null;
+		});
+
+		ExecutorService workers = Executors.newFixedThreadPool(4);
+		try {
+			List<TestEntity> shared = new CopyOnWriteArrayList<>();
+			tx.execute(t -> {
+				List<Future<Object>> tasks = new ArrayList<>();
+				for (int w = 0; w < 4; w++) {
+					int worker = w;
+					tasks.add(workers.submit(AbstractViewManager.shareSessions(() -> {
+						for (int i = worker; i < 40; i += 4) {
+							shared.add(concurrent.require("ID1"));
+							if (i % 8 == 0) {
+								concurrent.remove("ID" + i);
+							} else {
+								concurrent.require("ID" + i).write().count = i;
+							}
+						}
+						concurrent.createOrUpdate("NEW" + worker, item -> item.setGroupId("GroupID"));
+						return null;
+					})));
+				}
+				tasks.forEach(task -> {
+					try {
+						task.get();
+					} catch (InterruptedException | ExecutionException e) {
+						throw new IllegalStateException(e);
+					}
+				});
+				assertThat(concurrent.findByGroupId("GroupID"), hasSize(39));
+				return null;
+			});
+			assertThat(shared, hasSize(40));
+			shared.forEach(item -> assertSame(shared.get(0), item));
+
+			List<TestEntity> result = tx.execute(t -> concurrent.findByGroupId("GroupID"));
+			assertThat(result, hasSize(39));
+			result.stream().filter(item -> item.getId().startsWith("ID")).forEach(item -> {
+				assertEquals(Integer.parseInt(item.getId().substring(2)), item.read().count);
+			});
+
+			// Sessions of this view manager are not thread-safe
+			Throwable failure = tx.execute(t -> {
+				try {
+					workers.submit(AbstractViewManager.shareSessions(() -> vm.load("ID1"))).get();
+					return null;
+				} catch (InterruptedException | ExecutionException e) {
+					return e.getCause();
+				}
+			});
+			assertTrue(failure instanceof IllegalStateException);
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	@Test
+	public void testProjectionExecutor() throws InterruptedException {
+		List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		try (ProjectionExecutor<TestEntity, String> projection = new ProjectionExecutor<>(vm, tm, 4, 50)) {
+			projection.setBatchSize(10);
+			projection.setFailureHandler((id, work, cause) -> failures.add(id + ": " + cause.getMessage()));
+			for (int i = 0; i < 10; i++) {
+				int expected = i;
+				for (int id = 0; id < 20; id++) {
+					projection.createOrUpdate("ID" + id, item -> {
+						item.setGroupId("GroupID");
+						TestObject object = item.write();
+						object.key = (object.key == null ? "" : object.key) + expected;
+					});
+				}
+			}
+			projection.submit("ID0", () -> {
+				throw new IllegalStateException("Failing task");
+			});
+			projection.submit("ID1", () -> {
+				throw new AssertionError("Failing error");
+			});
+			// Work of a failed id is discarded
+			projection.createOrUpdate("ID0", item -> item.write().key = "Discarded");
+			projection.flush();
+
+			assertEquals(0, projection.getBacklog());
+			assertEquals(200, projection.getCompletedTasks());
+			assertEquals(3, projection.getFailedTasks());
+			assertEquals(200, metrics.projectedTasks.get());
+			assertTrue(metrics.projectedBatches.get() < 200);
+			assertThat(failures, containsInAnyOrder("ID0: Failing task", "ID1: Failing error", "ID0: Failing task"));
+			assertTrue(projection.isStopped("ID0"));
+			assertFalse(projection.isStopped("ID2"));
+
+			projection.resume("ID0");
+			projection.createOrUpdate("ID0", item -> item.write().count = 1);
+			projection.flush();
+			assertEquals(201, projection.getCompletedTasks());
+		}
+		assertEquals(1, tx.execute(t -> vm.require("ID0")).read().count);
+
+		List<TestEntity> result = tx.execute(t -> vm.findByGroupId("GroupID"));
+		assertThat(result, hasSize(20));
+		// Work of the same id is executed in order
+		result.forEach(item -> assertEquals("0123456789", item.read().key));
+	}
+
+	@Test
+	public void testCreateOrUpdate() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			for (String id : new String[] { "ID1", "ID2" }) {
+				vm.createOrUpdate(id, entity -> {
+					entity.setGroupId("GroupID");
+					entity.write().count++;
+				});
+			}
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity id1 = vm.require("ID1");
+			assertEquals(1, id1.read().count);
+			assertEquals("RED", id1.read().key);
+			assertEquals(1, id1.getVersion());
+
+			TestEntity id2 = vm.require("ID2");
+			assertEquals(1, id2.read().count);
+			assertEquals(0, id2.getVersion());
+			return null;
+		});
+	}
+
+	@Test
+	public void testCreateOrUpdateInsertedConcurrently() throws Exception {
+		ExecutorService concurrent = Executors.newSingleThreadExecutor();
+		try {
+			tx.execute(t -> {
+				vm.createOrUpdate("ID1", entity -> {
+					entity.setGroupId("GroupID");
+					entity.write().count++;
+				});
+				// Resolved as a new entity
+				assertEquals(1, vm.require("ID1").read().count);
+				try {
+					concurrent.submit(() -> tx.execute(c -> {
+						vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+						return null;
+					})).get();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new IllegalStateException(e);
+				}
+				return null;
+			});
+			fail("Expected optimistic locking failure");
+		} catch (OptimisticLockingFailureException e) {
+		} finally {
+			concurrent.shutdown();
+		}
+		assertEquals(0, tx.execute(t -> vm.require("ID1")).read().count);
+	}
+
+	@Test
+	public void testCreateOrUpdateResolvedOnAccess() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			vm.createOrUpdate("ID1", entity -> entity.write().count += 2);
+			TestEntity entity = vm.require("ID1");
+			assertEquals(2, entity.read().count);
+			assertEquals("RED", entity.read().key);
+
+			vm.createOrUpdate("ID1", e -> e.write().count++);
+			assertEquals(3, entity.read().count);
+			return null;
+		});
+
+		assertEquals(3, tx.execute(t -> vm.require("ID1")).read().count);
+	}
+
+	@Test
+	public void testCreateOrUpdateResolvedAtOnce() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		AtomicInteger updates = new AtomicInteger();
+		tx.execute(t -> {
+			for (String id : new String[] { "ID1", "ID2", "ID3" }) {
+				vm.createOrUpdate(id, entity -> {
+					updates.incrementAndGet();
+					entity.setGroupId("GroupID");
+					entity.write().count++;
+				});
+			}
+			assertEquals(0, updates.get());
+			assertThat(vm.findByGroupId("GroupID"), hasSize(3));
+			assertEquals(1, metrics.loads.get());
+			assertEquals(3, updates.get());
+			return null;
+		});
+		assertEquals(3, updates.get());
+
+		tx.execute(t -> {
+			vm.loadAll(Arrays.asList("ID1", "ID2", "ID3")).forEach(item -> assertEquals(1, item.read().count));
+			return null;
+		});
+	}
+
+	@Test
+	public void testMultiRowInsert() {
+		vm.getPersistence().setMultiRowInsertSize(4);
+		try {
+			tx.execute(t -> {
+				for (int i = 0; i < 11; i++) {
+					vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+				}
+				return null;
+			});
+
+			assertThat(tx.execute(t -> vm.findByGroupId("GroupID")), hasSize(11));
+		} finally {
+			vm.getPersistence().setMultiRowInsertSize(1);
+		}
+	}
+
+	@Test
+	public void testLoadAll() {
+		tx.execute(t -> {
+			for (int i = 1; i <= 5; i++) {
+				vm.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+			}
+			return null;
+		});
+
+		vm.getPersistence().setMaxInClauseSize(2);
+		try {
+			tx.execute(t -> {
+				TestEntity id1 = vm.require("ID1");
+				vm.remove("ID2");
+
+				List<TestEntity> result = vm.loadAll(Arrays.asList("ID1", "ID2", "ID3", "ID9", "ID4", "ID5", "ID3"));
+				assertEquals(Arrays.asList("ID1", "ID3", "ID4", "ID5"), result.stream().map(e -> e.getId()).collect(Collectors.toList()));
+				assertSame(id1, result.get(0));
+				assertSame(result.get(1), vm.require("ID3"));
+
+				try {
+					vm.requireAll(Arrays.asList("ID1", "ID9"));
+					fail("EntityNotFoundException expected");
+				} catch (EntityNotFoundException e) {
+					/* expected */
+				}
+				return null;
+			});
+		} finally {
+			vm.getPersistence().setMaxInClauseSize(JdbcPersistenceAdapter.DEFAULT_MAX_IN_CLAUSE_SIZE);
+		}
+	}
+
+	@Test
+	public void testFindByGroupIds() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("Group1", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("Group2", "BLUE", "Color")));
+			vm.persist(new TestEntity("ID3", new TestObject("Group3", "BLUE", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity id1 = vm.require("ID1");
+			vm.persist(new TestEntity("ID4", new TestObject("Group2", "GREEN", "Color")));
+
+			List<TestEntity> result = vm.findByGroupIds(Arrays.asList("Group1", "Group2"));
+			assertThat(result, hasSize(3));
+			assertThat(result, hasItem(id1));
+			return null;
+		});
+	}
+
+	@Test
+	public void testFindByNullKey() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", null, "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID3", new TestObject("GroupID", "BLUE", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID4", new TestObject("GroupID", null, "Color")));
+
+			// NULL columns are matched in the database as well as in the session
+			List<TestEntity> result = vm.findByKeys(Arrays.asList(null, "RED"));
+			assertThat(result.stream().map(TestEntity::getId).collect(Collectors.toList()),
+					containsInAnyOrder("ID1", "ID2", "ID4"));
+			return null;
+		});
+	}
+
+	@Test
+	public void testFindByMultipleColumns() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("Group1", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("Group1", "BLUE", "Color")));
+			vm.persist(new TestEntity("ID3", new TestObject("Group2", "RED", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			assertThat(vm.findByGroupIdAndKey("Group1", "RED"), contains(vm.require("ID1")));
+
+			TestEntity added = new TestEntity("ID4", new TestObject("Group1", "RED", "Color"));
+			vm.persist(added);
+			vm.require("ID1").setKey("GREEN");
+			List<TestEntity> result = vm.findByGroupIdAndKey("Group1", "RED");
+			assertThat(result, contains(added));
+
+			vm.require("ID2").setKey(null);
+			assertThat(vm.findByGroupIdAndKey("Group1", null), contains(vm.require("ID2")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			assertThat(vm.findByGroupIdAndKey("Group1", null), hasSize(1));
+			return null;
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFindByUnknownColumn() {
+		new JdbcPersistenceAdapter<>(dataSource, (rs, i) -> null, "TEST.TEST_VIEW_ENTITY", "ID", "VERSION", "SERIALIZED_DATA",
+				"ITEM_ID").findBy("KEY", "RED");
+	}
+
+	@Test
+	public void testMissingIdsAreLookedUpOnce() {
+		tx.execute(t -> {
+			assertNull(vm.load("ID1"));
+			assertNull(vm.load("ID1"));
+			assertThat(vm.loadAll(Arrays.asList("ID1", "ID2")), hasSize(0));
+			assertEquals(2, metrics.sessionMisses.get());
+
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "Key", "OtherKey")));
+			assertThat(vm.loadAll(Arrays.asList("ID1", "ID2")), hasSize(1));
+			return null;
+		});
+		assertThat(tx.execute(t -> vm.load("ID1")), notNullValue());
+	}
+
+	@Test
+	public void testIdFilter() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "Key", "OtherKey")));
+			return null;
+		});
+
+		vm.buildIdFilter(1000, 0.001);
+		try {
+			tx.execute(t -> {
+				assertThat(vm.load("ID1"), notNullValue());
+				assertEquals(1, metrics.loads.get());
+				for (int i = 2; i < 100; i++) {
+					assertNull(vm.load("ID" + i));
+				}
+				assertThat(vm.loadAll(Arrays.asList("ID100", "ID101")), hasSize(0));
+				vm.createOrUpdate("ID2", item -> item.setGroupId("GroupID"));
+				return null;
+			});
+			// Only false positives are selected
+			assertTrue(metrics.loads.get() < 5);
+
+			assertThat(tx.execute(t -> vm.load("ID2")), notNullValue());
+		} finally {
+			vm.removeIdFilter();
+		}
+	}
+
+	@Test
+	public void testIdFilterAddsUncommittedIds() {
+		TestEntity entity = new TestEntity("ID1", new TestObject("GroupID", "Key", "OtherKey"));
+		entity.setObjectMapper(objectMapper);
+		try {
+			tx.execute(t -> {
+				// The id is added before the filter is built, the row is inserted after the ids have been read
+				vm.addToIdFilter(Collections.singletonList(new Object[] { "ID1" }));
+				vm.buildIdFilter(1000, 0.001);
+				vm.getPersistence().insert(vm.getObjectValues(entity));
+				return null;
+			});
+			assertThat(tx.execute(t -> vm.load("ID1")), notNullValue());
+		} finally {
+			vm.removeIdFilter();
+		}
+	}
+
+	@Test
+	public void testSecondLevelCache() {
+		vm.setCache(new ViewCache(1024 * 1024));
+		try {
+			tx.execute(t -> {
+				vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+				return null;
+			});
+			assertEquals(1, vm.getCache().size());
+
+			// Served from the cache, even though the row has changed behind the view manager's back
+			vm.getPersistence().getJdbc().update("UPDATE TEST.TEST_VIEW_ENTITY SET VERSION = 5 WHERE ID = 'ID1'");
+			try {
+				tx.execute(t -> {
+					TestEntity entity = vm.require("ID1");
+					assertEquals(0, entity.getVersion());
+					entity.write().count++;
+					return null;
+				});
+				fail("Expected concurrent modification exception");
+			} catch (OptimisticLockingFailureException e) {
+				// stale entry has been evicted
+			}
+			assertEquals(0, vm.getCache().size());
+
+			tx.execute(t -> {
+				TestEntity entity = vm.require("ID1");
+				assertEquals(5, entity.getVersion());
+				entity.write().count++;
+				return null;
+			});
+			tx.execute(t -> {
+				assertEquals(6, vm.require("ID1").getVersion());
+				return null;
+			});
+
+			tx.execute(t -> {
+				vm.remove("ID1");
+				return null;
+			});
+			assertEquals(0, vm.getCache().size());
+			assertNull(tx.execute(t -> vm.load("ID1")));
+		} finally {
+			vm.setCache(null);
+		}
+	}
+
+	@Test
+	public void testCacheKeepsNewerVersion() {
+		ViewBufferPool pool = new ViewBufferPool(1024 * 1024);
+		ViewCache cache = new ViewCache(1024 * 1024, pool);
+		cache.put(new Object[] { "ID1", 2L, new byte[] { 2 }, "GroupID", null, null });
+		// Selected by a reader before version 2 has been committed
+		cache.put(new Object[] { "ID1", 1L, new byte[] { 1 }, "GroupID", null, null });
+
+		Object[] values = cache.get("ID1");
+		assertEquals(2L, values[1]);
+		assertArrayEquals(new byte[] { 2 }, ((PooledBuffer) values[2]).toByteArray());
+		((PooledBuffer) values[2]).release();
+		// The buffer of the rejected entry has been returned to the pool
+		assertEquals(4096, pool.getPooledBytes());
+
+		cache.put(new Object[] { "ID1", 3L, new byte[] { 3 }, "GroupID", null, null });
+		values = cache.get("ID1");
+		assertEquals(3L, values[1]);
+		((PooledBuffer) values[2]).release();
+	}
+
+	@Test
+	public void testOffHeapCache() {
+		ViewBufferPool pool = new ViewBufferPool(1024 * 1024);
+		JacksonViewCodec<TestObject> codec = new JacksonViewCodec<>(new TypeReference<TestObject>() {
+		}, new ObjectMapper(new SmileFactory()), objectMapper);
+		codec.setCompressionThreshold(0);
+		vm.setCodec(codec);
+		vm.setCache(new ViewCache(1024 * 1024, pool));
+		try {
+			tx.execute(t -> {
+				vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+				vm.persist(new TestEntity("ID2", new TestObject("GroupID", "BLUE", "Color")));
+				return null;
+			});
+			assertEquals(2 * 4096, pool.getAllocatedBytes());
+			assertEquals(0, pool.getPooledBytes());
+
+			TestEntity id2 = tx.execute(t -> {
+				TestEntity id1 = vm.require("ID1");
+				TestEntity entity = vm.require("ID2");
+				// Buffers are held by the session until the transaction completes
+				vm.getCache().invalidateAll();
+				assertEquals(0, pool.getPooledBytes());
+
+				assertEquals("RED", id1.readPath(JsonPointer.compile("/key"), String.class));
+				assertEquals("RED", id1.read().key);
+				return entity;
+			});
+			assertEquals(2 * 4096, pool.getPooledBytes());
+			// Entities that haven't been read load their data again
+			int loaded = metrics.loaded.get();
+			assertEquals("BLUE", id2.read().key);
+			assertEquals(loaded + 1, metrics.loaded.get());
+
+			tx.execute(t -> {
+				vm.require("ID1").write().count++;
+				return null;
+			});
+			assertEquals(1, vm.getCache().size());
+			assertEquals(2 * 4096, pool.getAllocatedBytes());
+			assertEquals(4096, pool.getPooledBytes());
+			tx.execute(t -> {
+				TestEntity id1 = vm.require("ID1");
+				assertEquals(1, id1.read().count);
+				assertEquals(JacksonViewCodec.DEFLATE, id1.getSerializedData()[0]);
+				return null;
+			});
+
+			tx.execute(t -> vm.require("ID2"));
+			// Restored from the cache
+			TestEntity unread = tx.execute(t -> vm.require("ID2"));
+			tx.execute(t -> {
+				vm.require("ID2").write().count++;
+				return null;
+			});
+			try {
+				unread.read();
+				fail("Expected optimistic locking failure");
+			} catch (OptimisticLockingFailureException e) {
+			}
+		} finally {
+			vm.setCache(null);
+			vm.setCodec(null);
+		}
+	}
+
+	@Test
+	public void testOffHeapLoad() throws Exception {
+		ViewBufferPool pool = new ViewBufferPool(1024 * 1024);
+		byte[] data = new byte[10000];
+		Arrays.fill(data, (byte) 7);
+		PooledBuffer buffer = pool.read(new ByteArrayInputStream(data));
+		assertArrayEquals(data, buffer.toByteArray());
+		buffer.release();
+		assertEquals(4096 + 8192 + 16384, pool.getPooledBytes());
+
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+		vm.setCache(new ViewCache(1024 * 1024, pool));
+		vm.getPersistence().setBufferPool(pool);
+		try {
+			TestEntity id1 = tx.execute(t -> {
+				TestEntity entity = vm.require("ID1");
+				// The cache entry shares the buffer the row has been read into
+				assertEquals(1, vm.getCache().size());
+				assertEquals(8192 + 16384, pool.getPooledBytes());
+				vm.getCache().invalidateAll();
+				assertEquals(8192 + 16384, pool.getPooledBytes());
+				assertEquals("RED", entity.readPath(JsonPointer.compile("/key"), String.class));
+				return entity;
+			});
+			assertEquals(4096 + 8192 + 16384, pool.getPooledBytes());
+			assertEquals("RED", id1.read().key);
+		} finally {
+			vm.setCache(null);
+			vm.getPersistence().setBufferPool(null);
+		}
+	}
+
+	@Test
+	public void testOffHeapLoadReleasesSkippedRows() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "BLUE", "Color")));
+			return null;
+		});
+		ViewBufferPool pool = new ViewBufferPool(1024 * 1024);
+		vm.getPersistence().setBufferPool(pool);
+		try {
+			tx.execute(t -> {
+				// Detached entities are not held by the session
+				try (Stream<TestEntity> stream = vm.streamByGroupId("GroupID", false)) {
+					assertEquals(2, stream.count());
+				}
+				assertEquals(pool.getAllocatedBytes(), pool.getPooledBytes());
+
+				vm.require("ID1");
+				vm.remove("ID2");
+				// The rows of entities in the session are read again, but are not part of the result
+				assertThat(vm.findByGroupId("GroupID"), hasSize(1));
+				try (Stream<TestEntity> stream = vm.streamByGroupId("GroupID", true)) {
+					assertEquals(1, stream.count());
+				}
+				return null;
+			});
+			assertEquals(pool.getAllocatedBytes(), pool.getPooledBytes());
+		} finally {
+			vm.getPersistence().setBufferPool(null);
+		}
+	}
+
+	@Test
+	public void testBinaryCodecs() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+		TestViewManager smile = new TestViewManager(dataSource, objectMapper);
+		smile.setCodec(new JacksonViewCodec<>(new TypeReference<TestObject>() {
+		}, smileMapper, objectMapper));
+		TestViewManager cbor = new TestViewManager(dataSource, objectMapper);
+		cbor.setCodec(new JacksonViewCodec<>(new TypeReference<TestObject>() {
+		}, new ObjectMapper(new CBORFactory()), objectMapper, smileMapper));
+
+		tx.execute(t -> {
+			// JSON rows can still be read
+			smile.require("ID1").write().count = 1;
+			smile.persist(new TestEntity("ID2", new TestObject("GroupID", "BLUE", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity id1 = cbor.require("ID1");
+			TestEntity id2 = cbor.require("ID2");
+			assertEquals(JacksonViewCodec.SMILE, id1.getSerializedData()[0]);
+			assertEquals(1, id1.read().count);
+			assertEquals("BLUE", id2.readPath(JsonPointer.compile("/key"), String.class));
+			assertEquals("{\"groupId\":\"GroupID\",\"key\":\"BLUE\",\"otherKey\":\"Color\",\"count\":0}",
+					id2.generateRawJsonString());
+
+			id2.write().count = 2;
+			return null;
+		});
+
+		assertEquals(JacksonViewCodec.CBOR, (byte) tx.execute(t -> cbor.require("ID2").getSerializedData()[0]));
+		assertEquals(2, tx.execute(t -> cbor.require("ID2")).read().count);
+	}
+
+	@Test
+	public void testCompression() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		JacksonViewCodec<TestObject> codec = new JacksonViewCodec<>(new TypeReference<TestObject>() {
+		}, objectMapper);
+		codec.setCompressionThreshold(100);
+		TestViewManager compressed = new TestViewManager(dataSource, objectMapper);
+		compressed.setCodec(codec);
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			large.append("Color");
+		}
+		tx.execute(t -> {
+			// Uncompressed rows can still be read
+			assertEquals("RED", compressed.require("ID1").read().key);
+			TestEntity entity = new TestEntity("ID2", new TestObject("GroupID", "BLUE", "Color"));
+			entity.write().otherKey = large.toString();
+			compressed.persist(entity);
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity id1 = compressed.require("ID1");
+			TestEntity id2 = compressed.require("ID2");
+			assertEquals('{', id1.getSerializedData()[0]);
+			assertEquals(JacksonViewCodec.DEFLATE, id2.getSerializedData()[0]);
+			assertTrue(id2.getSerializedData().length < 1000);
+
+			assertEquals("BLUE", id2.readPath(JsonPointer.compile("/key"), String.class));
+			assertEquals(large.toString(), id2.readFields("otherKey").get("otherKey").asText());
+			assertEquals(large.toString(), id2.read().otherKey);
+			assertTrue(id2.generateRawJsonString().startsWith("{\"groupId\":\"GroupID\""));
+			return null;
+		});
+	}
+
+	@Test
+	public void testRebuild() {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("OLD", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		try (ViewRebuild<TestEntity, String> rebuild = vm.rebuild()) {
+			rebuild.setMaxWorkingSetSize(5);
+			for (int chunk = 0; chunk < 4; chunk++) {
+				tx.execute(t -> {
+					for (int event = 0; event < 25; event++) {
+						rebuild.createOrUpdate("ID" + event % 10, item -> {
+							item.setGroupId("GroupID");
+							item.write().count++;
+						});
+					}
+					rebuild.flush();
+					return null;
+				});
+			}
+			rebuild.remove("ID9");
+		}
+
+		tx.execute(t -> {
+			assertNull(vm.load("OLD"));
+			assertNull(vm.load("ID9"));
+			List<TestEntity> result = vm.findByGroupId("GroupID");
+			assertThat(result, hasSize(9));
+			result.forEach(item -> {
+				int index = Integer.parseInt(item.getId().substring(2));
+				assertEquals(index < 5 ? 12 : 8, item.read().count);
+				assertEquals(3, item.getVersion());
+			});
+			return null;
+		});
+	}
+
+	@Test
+	public void testWriteBehind() throws InterruptedException {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		TestViewManager writeBehind = new TestViewManager(dataSource, objectMapper);
+		try (WriteBehindQueue queue = new WriteBehindQueue(writeBehind.getPersistence(), tm, 100)) {
+			queue.setFlushInterval(60000);
+			writeBehind.setWriteBehindQueue(queue);
+
+			for (int i = 1; i <= 3; i++) {
+				tx.execute(t -> {
+					writeBehind.require("ID1").write().count++;
+					writeBehind.createOrUpdate("ID3", item -> {
+						item.setGroupId("GroupID");
+						item.write().count++;
+					});
+					return null;
+				});
+			}
+			tx.execute(t -> {
+				writeBehind.remove("ID2");
+				return null;
+			});
+			assertEquals(3, queue.size());
+
+			// Queued changes are read before the database
+			tx.execute(t -> {
+				// Queries only find the rows in the database, but their values are replaced
+				List<TestEntity> found = writeBehind.findByGroupId("GroupID");
+				assertThat(found, hasSize(1));
+				assertEquals(3, found.get(0).read().count);
+
+				assertEquals(3, writeBehind.require("ID1").read().count);
+				assertEquals(3, writeBehind.require("ID1").getVersion());
+				assertEquals(3, writeBehind.require("ID3").read().count);
+				assertNull(writeBehind.load("ID2"));
+
+				assertEquals(0, vm.require("ID1").read().count);
+				assertNull(vm.load("ID3"));
+				return null;
+			});
+
+			queue.flush();
+			assertEquals(0, queue.size());
+		}
+
+		tx.execute(t -> {
+			assertEquals(3, vm.require("ID1").read().count);
+			assertEquals(3, vm.require("ID1").getVersion());
+			assertEquals(3, vm.require("ID3").read().count);
+			assertNull(vm.load("ID2"));
+			return null;
+		});
+	}
+
+	@Test
+	public void testWriteBehindQueuedValuesMatchQuery() throws InterruptedException {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		TestViewManager writeBehind = new TestViewManager(dataSource, objectMapper);
+		try (WriteBehindQueue queue = new WriteBehindQueue(writeBehind.getPersistence(), tm, 100)) {
+			queue.setFlushInterval(60000);
+			writeBehind.setWriteBehindQueue(queue);
+			tx.execute(t -> {
+				writeBehind.require("ID1").setGroupId("OtherGroupID");
+				writeBehind.require("ID2").setKey("BLUE");
+				return null;
+			});
+
+			tx.execute(t -> {
+				// The rows in the database match, but their queued values don't
+				assertThat(writeBehind.findByGroupId("GroupID"), contains(hasProperty("id", equalTo("ID2"))));
+				assertThat(writeBehind.findByGroupIds(Arrays.asList("GroupID")), contains(hasProperty("id", equalTo("ID2"))));
+				assertThat(writeBehind.findByGroupIdAndKey("GroupID", "RED"), hasSize(0));
+				try (Stream<TestEntity> stream = writeBehind.streamByGroupId("GroupID", false)) {
+					assertEquals(Arrays.asList("ID2"), stream.map(TestEntity::getId).collect(Collectors.toList()));
+				}
+				return null;
+			});
+		}
+	}
+
+	@Test
+	public void testWriteBehindRollback() throws InterruptedException {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		TestViewManager writeBehind = new TestViewManager(dataSource, objectMapper);
+		try (WriteBehindQueue queue = new WriteBehindQueue(writeBehind.getPersistence(), tm, 100)) {
+			writeBehind.setWriteBehindQueue(queue);
+			try {
+				tx.execute(t -> {
+					writeBehind.require("ID1").write().count++;
+					writeBehind.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+					// Fails after the sessions have been flushed
+					TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+						@Override
+						public void beforeCommit(boolean readOnly) {
+							throw new IllegalStateException("Commit failed");
+						}
+					});
+					return null;
+				});
+				fail("Expected the commit to fail");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertEquals(0, queue.size());
+
+			tx.execute(t -> {
+				assertEquals(0, writeBehind.require("ID1").read().count);
+				assertNull(writeBehind.load("ID2"));
+				// The ids have been released
+				writeBehind.require("ID1").write().count++;
+				return null;
+			});
+			queue.flush();
+		}
+
+		tx.execute(t -> {
+			assertEquals(1, vm.require("ID1").read().count);
+			assertNull(vm.load("ID2"));
+			return null;
+		});
+	}
+
+	@Test
+	public void testWriteBehindFailure() throws InterruptedException {
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			vm.persist(new TestEntity("ID2", new TestObject("GroupID", "RED", "Color")));
+			return null;
+		});
+
+		TestViewManager writeBehind = new TestViewManager(dataSource, objectMapper);
+		List<String> failed = new CopyOnWriteArrayList<>();
+		try (WriteBehindQueue queue = new WriteBehindQueue(writeBehind.getPersistence(), tm, 100)) {
+			queue.setFlushInterval(60000);
+			queue.setFailureHandler((id, values, cause) -> failed.add(id));
+			writeBehind.setWriteBehindQueue(queue);
+
+			tx.execute(t -> {
+				writeBehind.require("ID1").write().count++;
+				writeBehind.require("ID2").write().count++;
+				return null;
+			});
+			// The queued update of ID1 fails the optimistic lock
+			vm.getPersistence().getJdbc().update("UPDATE TEST.TEST_VIEW_ENTITY SET VERSION = 5 WHERE ID = 'ID1'");
+			queue.flush();
+
+			assertThat(failed, contains("ID1"));
+			assertEquals(1, queue.getFailedChanges());
+		}
+
+		tx.execute(t -> {
+			assertEquals(0, vm.require("ID1").read().count);
+			assertEquals(1, vm.require("ID2").read().count);
+			return null;
+		});
+	}
+
+	@Test(timeout = 10000)
+	public void testWriteBehindCapacity() throws Exception {
+		TestViewManager writeBehind = new TestViewManager(dataSource, objectMapper);
+		try (WriteBehindQueue queue = new WriteBehindQueue(writeBehind.getPersistence(), tm, 2)) {
+			queue.setFlushInterval(60000);
+			writeBehind.setWriteBehindQueue(queue);
+			tx.execute(t -> {
+				writeBehind.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+				return null;
+			});
+
+			// Doesn't fit until the queued change has been written
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			Future<?> commit = executor.submit(() -> tx.execute(t -> {
+				for (int i = 2; i <= 4; i++) {
+					writeBehind.persist(new TestEntity("ID" + i, new TestObject("GroupID", "RED", "Color")));
+				}
+				return null;
+			}));
+			Thread.sleep(200);
+			assertEquals(false, commit.isDone());
+			assertEquals(1, queue.size());
+
+			queue.flush();
+			// A transaction with more changes than the capacity doesn't wait for itself
+			commit.get();
+			executor.shutdown();
+			queue.flush();
+		}
+		assertEquals(4, tx.execute(t -> vm.loadAll(Arrays.asList("ID1", "ID2", "ID3", "ID4"))).size());
+	}
+
+	@Test
+	public void testMultipleViewManagersInTransaction() {
+		TestViewManager other = new TestViewManager(dataSource, objectMapper, "TEST.OTHER_VIEW_ENTITY");
+		other.deleteAll();
+
+		tx.execute(t -> {
+			vm.persist(new TestEntity("ID1", new TestObject("GroupID", "RED", "Color")));
+			other.persist(new TestEntity("ID1", new TestObject("OtherGroupID", "BLUE", "Color")));
+			return null;
+		});
+
+		tx.execute(t -> {
+			TestEntity entity = vm.require("ID1");
+			TestEntity otherEntity = other.require("ID1");
+			assertNotSame(entity, otherEntity);
+			assertEquals("GroupID", entity.getGroupId());
+			assertEquals("OtherGroupID", otherEntity.getGroupId());
+
+			entity.write().count = 1;
+			otherEntity.write().count = 2;
+			other.remove("ID1");
+			return null;
+		});
+
+		assertEquals(1, tx.execute(t -> vm.require("ID1")).read().count);
+		assertNull(tx.execute(t -> other.load("ID1")));
+	}
+
 	@Test(timeout = 500)
 	public void testConcurrentModification() {
 		tx.execute(t -> {
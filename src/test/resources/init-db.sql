@@ -25,3 +25,20 @@ CREATE INDEX TEST.TEST_VIEW_ENTITY_KEY_IDX
 
 CREATE INDEX TEST.TEST_VIEW_ENTITY_OTHER_KEY_IDX
 	ON TEST.TEST_VIEW_ENTITY (OTHER_KEY);
+
+--TEST.OTHER_VIEW_ENTITY
+CREATE TABLE TEST.OTHER_VIEW_ENTITY (
+	ID 					VARCHAR(36) NOT NULL,
+	VERSION 			BIGINT NOT NULL,
+	SERIALIZED_DATA 	BLOB(1048576),
+	ITEM_ID 			VARCHAR(36) NOT NULL,
+	KEY					VARCHAR(36),
+	OTHER_KEY	 		VARCHAR(36)
+);
+
+ALTER TABLE TEST.OTHER_VIEW_ENTITY 
+	ADD CONSTRAINT OTHER_VIEW_ENTITY_PK 
+		PRIMARY KEY (ID);
+
+CREATE INDEX TEST.OTHER_VIEW_ENTITY_ITEM_ID_IDX
+	ON TEST.OTHER_VIEW_ENTITY (ITEM_ID);